@@ -1,8 +1,22 @@
 package probcalc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Class storing information about the state of the game (from the
  * perspective of the player).
+ *
+ * The squares are kept as bytes (the ordinal of each Square), row by row,
+ * with an extra ring of border cells all the way round. The border cells
+ * are neither known nor unknown, so looking at the neighbours of any square
+ * on the board never needs a bounds check.
+ *
+ * The unknown, flagged and known squares are also kept as bitboards: one
+ * bit per square, in words() longs per row, with column c of row r in bit
+ * (c % 64) of word r * words() + c / 64. Whole rows of them can be shifted
+ * and combined at once, which makes finding the frontier (see frontier())
+ * a few operations per 64 squares.
  */
 public class Board {
 	
@@ -23,8 +37,48 @@ public class Board {
 	
 	// The actual game grid. We will be using the age-old convention of having
 	// the top-left corner be (0,0) and the bottom-right corner being
-	// (m_rows - 1, m_cols - 1).
-	private Square[][] m_grid;
+	// (m_rows - 1, m_cols - 1). Square (r,c) is m_cells[(r + 1) * m_stride +
+	// c + 1], which holds the ordinal of its Square, and the cells round the
+	// edge hold s_border.
+	private byte[] m_cells;
+	private int m_stride;
+	
+	// The bitboards of the unknown, flagged and known squares, m_words longs
+	// to a row.
+	private long[] m_unknownbits;
+	private long[] m_flagbits;
+	private long[] m_knownbits;
+	private int m_words;
+	
+	// Counts the changes made to the board, so that anyone holding on to
+	// something worked out from it can tell when it has gone stale.
+	private long m_version;
+	// A Zobrist-style hash of the board. Every square which is not UNKNOWN
+	// mixes in a value picked (pseudo-randomly) for that square and its
+	// contents, so it can be kept up to date one square at a time.
+	private long m_hash;
+	
+	// Everything which is told when a square changes.
+	private ArrayList<BoardListener> m_listeners = new ArrayList<BoardListener>();
+	
+	// The number of values a square can take, and each of them by its
+	// ordinal.
+	private static final Square[] s_squares = Square.values();
+	private static final int s_numsquares = s_squares.length;
+	
+	// The value of the cells round the edge of the grid.
+	private static final byte s_border = -1;
+	
+	// s_isknown[v + 1] and s_isunknown[v + 1] say whether a cell holding v
+	// is known, or unknown. The border is neither.
+	private static final boolean[] s_isknown = new boolean[s_numsquares + 1];
+	private static final boolean[] s_isunknown = new boolean[s_numsquares + 1];
+	static {
+		for (Square s : s_squares) {
+			s_isknown[s.ordinal() + 1] = (s != Square.UNKNOWN && s != Square.FLAG);
+			s_isunknown[s.ordinal() + 1] = (s == Square.UNKNOWN);
+		}
+	}
 	
 	
 	///////////////////////////////////////////////////////////////////////////
@@ -41,14 +95,10 @@ public class Board {
 		m_mines = 10;
 		m_flags = 0;
 		m_unknown = m_rows * m_cols;
-		m_grid = new Square[m_rows][m_cols];
+		m_hash = startHash();
 		
 		// Initially all squares are unknown.
-		for(int r = 0; r < m_rows; r++) {
-			for (int c = 0; c < m_cols; c++) {
-				m_grid[r][c] = Square.UNKNOWN;
-			}
-		}
+		startGrid();
 	}
 	
 	/**
@@ -87,14 +137,31 @@ public class Board {
 		}
 		
 		m_flags = 0;
-		m_grid = new Square[m_rows][m_cols];
+		m_hash = startHash();
 		
 		// Initially all squares are unknown.
-		for (int r = 0; r < m_rows; r++) {
-			for (int c = 0; c < m_cols; c++) {
-				m_grid[r][c] = Square.UNKNOWN;
-			}
-		}
+		startGrid();
+	}
+	
+	/**
+	 * Copy Constructor: Makes a snapshot of the given board. Changes made to
+	 * either board afterwards do not affect the other one. The snapshot
+	 * starts out with no listeners.
+	 */
+	public Board(Board other) {
+		m_rows = other.m_rows;
+		m_cols = other.m_cols;
+		m_mines = other.m_mines;
+		m_flags = other.m_flags;
+		m_unknown = other.m_unknown;
+		m_version = other.m_version;
+		m_hash = other.m_hash;
+		m_stride = other.m_stride;
+		m_words = other.m_words;
+		m_cells = other.m_cells.clone();
+		m_unknownbits = other.m_unknownbits.clone();
+		m_flagbits = other.m_flagbits.clone();
+		m_knownbits = other.m_knownbits.clone();
 	}
 	
 	
@@ -124,7 +191,7 @@ public class Board {
 		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
 			return Square.UNKNOWN;
 		}
-		return m_grid[r][c];
+		return s_squares[m_cells[cell(r, c)]];
 	}
 	
 	/**
@@ -160,6 +227,44 @@ public class Board {
 		return m_unknown;
 	}
 	
+	/**
+	 * Returns the number of safe squares still to be revealed: the covered
+	 * squares (unknown or flagged) which are not mines. The player has won
+	 * once this reaches zero without a mine being revealed. Kept up to date
+	 * by set(), so this takes no time at all.
+	 */
+	public int safe_left() {
+		return m_unknown + m_flags - m_mines;
+	}
+	
+	/**
+	 * Returns the number of changes which have been made to the board. This
+	 * goes up by one every time a square changes.
+	 */
+	public long version() {
+		return m_version;
+	}
+	
+	/**
+	 * Returns a hash of the board's size, mine count and contents. Two boards
+	 * which look the same have the same hash, however they got that way.
+	 */
+	public long hash() {
+		return m_hash;
+	}
+	
+	/**
+	 * Returns true if the other board has the same size, mine count and
+	 * contents as this one.
+	 */
+	public boolean matches(Board other) {
+		if (other.m_hash != m_hash || other.m_rows != m_rows ||
+			other.m_cols != m_cols || other.m_mines != m_mines) {
+			return false;
+		}
+		return Arrays.equals(other.m_cells, m_cells);
+	}
+	
 	/**
 	 * Returns true if any of the squares adjacent to (r,c) are "known."
 	 * Otherwise, this function returns false.
@@ -173,40 +278,16 @@ public class Board {
 			return false;
 		}
 		
-		// Top-Left
-		if (known(r-1,c-1)) {
-			return true;
-		}
-		// Top
-		if (known(r-1,c)) {
-			return true;
-		}
-		// Top-Right
-		if (known(r-1,c+1)) {
-			return true;
-		}
-		// Left
-		if (known(r,c-1)) {
-			return true;
-		}
-		// Right
-		if (known(r,c+1)) {
-			return true;
-		}
-		// Bottom-Left
-		if (known(r+1,c-1)) {
-			return true;
-		}
-		// Bottom
-		if (known(r+1,c)) {
-			return true;
-		}
-		// Bottom Right
-		if (known(r+1,c+1)) {
-			return true;
-		}
-		
-		return false;
+		// The border takes care of the edges.
+		int i = cell(r, c);
+		return s_isknown[m_cells[i - m_stride - 1] + 1] ||
+			s_isknown[m_cells[i - m_stride] + 1] ||
+			s_isknown[m_cells[i - m_stride + 1] + 1] ||
+			s_isknown[m_cells[i - 1] + 1] ||
+			s_isknown[m_cells[i + 1] + 1] ||
+			s_isknown[m_cells[i + m_stride - 1] + 1] ||
+			s_isknown[m_cells[i + m_stride] + 1] ||
+			s_isknown[m_cells[i + m_stride + 1] + 1];
 	}
 	
 	/**
@@ -221,7 +302,7 @@ public class Board {
 			return false;
 		}
 		
-		return (at(r, c) != Square.UNKNOWN && at(r,c) != Square.FLAG);
+		return s_isknown[m_cells[cell(r, c)] + 1];
 	}
 	
 	/**
@@ -237,40 +318,42 @@ public class Board {
 			return false;
 		}
 		
-		// Top-Left
-		if (unknown(r-1,c-1)) {
-			return true;
-		}
-		// Top
-		if (unknown(r-1,c)) {
-			return true;
-		}
-		// Top-Right
-		if (unknown(r-1,c+1)) {
-			return true;
-		}
-		// Left
-		if (unknown(r,c-1)) {
-			return true;
-		}
-		// Right
-		if (unknown(r,c+1)) {
-			return true;
-		}
-		// Bottom-Left
-		if (unknown(r+1,c-1)) {
-			return true;
-		}
-		// Bottom
-		if (unknown(r+1,c)) {
-			return true;
-		}
-		// Bottom Right
-		if (unknown(r+1,c+1)) {
-			return true;
+		// The border takes care of the edges.
+		int i = cell(r, c);
+		return s_isunknown[m_cells[i - m_stride - 1] + 1] ||
+			s_isunknown[m_cells[i - m_stride] + 1] ||
+			s_isunknown[m_cells[i - m_stride + 1] + 1] ||
+			s_isunknown[m_cells[i - 1] + 1] ||
+			s_isunknown[m_cells[i + 1] + 1] ||
+			s_isunknown[m_cells[i + m_stride - 1] + 1] ||
+			s_isunknown[m_cells[i + m_stride] + 1] ||
+			s_isunknown[m_cells[i + m_stride + 1] + 1];
+	}
+	
+	/**
+	 * Returns the number of flags adjacent to (r,c).
+	 * 
+	 * If (r,c) is out-of-bounds for the board, this function returns 0.
+	 */
+	public int flags_adjacent(int r, int c) {
+		
+		// Square is out of bounds.
+		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
+			return 0;
 		}
 		
-		return false;
+		// The border is never a flag.
+		int i = cell(r, c);
+		byte flag = (byte) Square.FLAG.ordinal();
+		int flags = 0;
+		for (int dr = -1; dr <= 1; dr++) {
+			for (int dc = -1; dc <= 1; dc++) {
+				if ((dr != 0 || dc != 0) && m_cells[i + dr * m_stride + dc] == flag) {
+					flags++;
+				}
+			}
+		}
+		return flags;
 	}
 	
 	/**
@@ -285,7 +368,53 @@ public class Board {
 			return false;
 		}
 		
-		return (at(r, c) == Square.UNKNOWN);
+		return m_cells[cell(r, c)] == Square.UNKNOWN.ordinal();
+	}
+	
+	/**
+	 * Returns the number of longs each row of a bitboard takes up.
+	 */
+	public int words() {
+		return m_words;
+	}
+	
+	/**
+	 * Returns a bitboard (see the top of the file) of the unknown squares
+	 * which have a known square next to them: the frontier. Flagged squares
+	 * are not included.
+	 */
+	public long[] frontier() {
+		return touching(m_unknownbits, m_knownbits);
+	}
+	
+	/**
+	 * Returns a bitboard (see the top of the file) of the flagged squares.
+	 */
+	public long[] flagged() {
+		return m_flagbits.clone();
+	}
+	
+	/**
+	 * Returns a bitboard (see the top of the file) of the known squares which
+	 * have an unknown square next to them: the numbers which still say
+	 * something.
+	 */
+	public long[] constraining() {
+		return touching(m_knownbits, m_unknownbits);
+	}
+	
+	/**
+	 * Returns a bitboard (see the top of the file) of the known squares which
+	 * have a flag next to them, but no unknown square: the numbers which the
+	 * flags around them must add up to exactly.
+	 */
+	public long[] closed() {
+		long[] closed = touching(m_knownbits, m_flagbits);
+		long[] open = touching(m_knownbits, m_unknownbits);
+		for (int i = 0; i < closed.length; i++) {
+			closed[i] &= ~open[i];
+		}
+		return closed;
 	}
 	
 	///////////////////////////////////////////////////////////////////////////
@@ -298,7 +427,9 @@ public class Board {
 	 * of the mines in the game.
 	 * 
 	 * Note that this function also increments/decrements m_flags and m_unknown
-	 * in accordance with the type of square being set.
+	 * in accordance with the type of square being set. If the square
+	 * changes, the board's version and hash are updated, and its listeners
+	 * are told.
 	 * 
 	 * This function returns false if square (r,c) is out of bounds, or true
 	 * otherwise.
@@ -310,28 +441,164 @@ public class Board {
 			return false;
 		}
 		
+		int i = cell(r, c);
+		Square before = s_squares[m_cells[i]];
+		
 		// Unflagging a square: decrement number of flags.
-		if (m_grid[r][c] == Square.FLAG && s != Square.FLAG) {
+		if (before == Square.FLAG && s != Square.FLAG) {
 			m_flags--;
 		}
 		// Flagging a square: increment number of flags.
-		else if (s == Square.FLAG && m_grid[r][c] != Square.FLAG) {
+		else if (s == Square.FLAG && before != Square.FLAG) {
 			m_flags++;
 		}
 		
 		// Turning a square from known to unknown (this should never happen in
 		// a normal game...): increment number of unknown squares.
-		if (m_grid[r][c] != Square.UNKNOWN && s == Square.UNKNOWN) {
+		if (before != Square.UNKNOWN && s == Square.UNKNOWN) {
 			m_unknown++;
 		}
 		// Uncovering or flagging an unknown square: decrement number of
 		// unknown squares.
-		else if (m_grid[r][c] == Square.UNKNOWN && s != Square.UNKNOWN) {
+		else if (before == Square.UNKNOWN && s != Square.UNKNOWN) {
 			m_unknown--;
 		}
 		
-		// Modify the grid and return true.
-		m_grid[r][c] = s;
+		// Nothing else to do if the square isn't actually changing.
+		if (before == s) {
+			return true;
+		}
+		
+		// Swap the old contents out of the hash and the new ones in.
+		m_hash ^= key(r, c, before) ^ key(r, c, s);
+		m_version++;
+		
+		// Modify the grid and the bitboards, and let everyone know.
+		m_cells[i] = (byte) s.ordinal();
+		int w = r * m_words + (c >> 6);
+		long bit = 1L << c;
+		m_unknownbits[w] &= ~bit;
+		m_flagbits[w] &= ~bit;
+		m_knownbits[w] &= ~bit;
+		if (s == Square.UNKNOWN) {
+			m_unknownbits[w] |= bit;
+		}
+		else if (s == Square.FLAG) {
+			m_flagbits[w] |= bit;
+		}
+		else {
+			m_knownbits[w] |= bit;
+		}
+		for (BoardListener listener : m_listeners) {
+			listener.squareChanged(this, r, c, before, s);
+		}
 		return true;
 	}
+	
+	/**
+	 * Asks for the given listener to be told whenever a square changes.
+	 */
+	public void addListener(BoardListener listener) {
+		m_listeners.add(listener);
+	}
+	
+	/**
+	 * Stops telling the given listener about changes.
+	 */
+	public void removeListener(BoardListener listener) {
+		m_listeners.remove(listener);
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	//							PRIVATE FUNCTIONS							 //
+	///////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Sets up the grid and the bitboards with every square unknown.
+	 */
+	private void startGrid() {
+		m_stride = m_cols + 2;
+		m_cells = new byte[(m_rows + 2) * m_stride];
+		Arrays.fill(m_cells, s_border);
+		for (int r = 0; r < m_rows; r++) {
+			Arrays.fill(m_cells, cell(r, 0), cell(r, m_cols), (byte) Square.UNKNOWN.ordinal());
+		}
+		
+		m_words = (m_cols + 63) >> 6;
+		m_unknownbits = new long[m_rows * m_words];
+		m_flagbits = new long[m_rows * m_words];
+		m_knownbits = new long[m_rows * m_words];
+		for (int r = 0; r < m_rows; r++) {
+			for (int w = 0; w < m_words; w++) {
+				int bits = Math.min(m_cols - 64 * w, 64);
+				m_unknownbits[r * m_words + w] = (bits == 64) ? -1L : (1L << bits) - 1;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the index into m_cells of square (r,c).
+	 */
+	private int cell(int r, int c) {
+		return (r + 1) * m_stride + c + 1;
+	}
+	
+	/**
+	 * Returns a bitboard of the squares in 'which' with at least one of the
+	 * squares in 'of' next to them. The squares in 'of' are spread out to
+	 * their neighbours a row at a time, by shifting each row one square
+	 * either way and joining it with the rows above and below.
+	 */
+	private long[] touching(long[] which, long[] of) {
+		long[] result = new long[m_rows * m_words];
+		long[] spread = new long[m_words];
+		for (int r = 0; r < m_rows; r++) {
+			Arrays.fill(spread, 0);
+			for (int dr = -1; dr <= 1; dr++) {
+				if (r + dr < 0 || r + dr >= m_rows) {
+					continue;
+				}
+				int row = (r + dr) * m_words;
+				for (int w = 0; w < m_words; w++) {
+					long bits = of[row + w];
+					long left = (bits << 1) | ((w > 0) ? of[row + w - 1] >>> 63 : 0);
+					long right = (bits >>> 1) | ((w + 1 < m_words) ? of[row + w + 1] << 63 : 0);
+					spread[w] |= bits | left | right;
+				}
+			}
+			for (int w = 0; w < m_words; w++) {
+				result[r * m_words + w] = which[r * m_words + w] & spread[w];
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the hash of an untouched board of this size and mine count.
+	 */
+	private long startHash() {
+		return mix(((long) m_rows << 42) ^ ((long) m_cols << 21) ^ m_mines);
+	}
+	
+	/**
+	 * Returns the value mixed into the hash when square (r,c) holds s.
+	 * UNKNOWN squares mix in nothing, so a new board needs no work.
+	 */
+	private long key(int r, int c, Square s) {
+		if (s == Square.UNKNOWN) {
+			return 0;
+		}
+		return mix(((long) r * m_cols + c) * s_numsquares + s.ordinal() + 1);
+	}
+	
+	/**
+	 * Scrambles the bits of x (the finishing step of SplitMix64), so that
+	 * nearby inputs give unrelated outputs.
+	 */
+	private static long mix(long x) {
+		x += 0x9e3779b97f4a7c15L;
+		x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+		x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+		return x ^ (x >>> 31);
+	}
 }
@@ -0,0 +1,14 @@
+package probcalc;
+
+/**
+ * Something which wants to be told whenever a square on a Board changes.
+ */
+public interface BoardListener {
+
+	/**
+	 * Called by the board after square (r,c) has changed from 'before' to
+	 * 'after'. Setting a square to what it already holds does not count as a
+	 * change.
+	 */
+	public void squareChanged(Board board, int r, int c, Square before, Square after);
+}
@@ -1,6 +1,14 @@
 package probcalc;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Given a minesweeper board, this class calculates the probabilities of each
@@ -10,14 +18,72 @@ import java.util.ArrayList;
  * instructions. For example, flagging a square which may or may not be a mine
  * could (will...) lead to incorrect probabilities being calculated. Un-
  * flagging that same square will return everything to normal, however.
+ * 
+ * The probabilities of the squares are only worked out from the components
+ * as they are asked for, so the board must not be changed once it has been
+ * handed to a Calculator (hand it a copy if it is still in play).
  */
 public class Calculator {
 
 	// The board for which we will be calculating probabilities.
 	private Board m_field;
 	
-	// The probabilities we report for the given minefield.
-	private double[][] m_prob;
+	// The components of the frontier, in order, and the regions of the
+	// frontier they come from. The probability of each square of component
+	// i is worked out from m_factor[i] when it is asked for (see combine()).
+	private Component[] m_comps;
+	private Frontier.Region[] m_regions;
+	private double[][] m_factor;
+	private int[] m_scale;
+	private double m_total;
+	// The probability of each unknown square away from the frontier.
+	private double m_interior;
+	// Where each frontier square is, by r * cols + c: (i << 32 | v) for
+	// square v of component i, or -1 - the value of a decided square. It is
+	// only made when it is first needed.
+	private HashMap<Integer, Long> m_where;
+	// False if no layout of mines fits the board (which can only happen if
+	// the player has put flags in the wrong places).
+	private boolean m_consistent;
+	// False if some components ran out of time, so that the probabilities
+	// are (at least partly) estimates. exact(r,c) says whether the
+	// probability of a square is exact all the same.
+	private boolean m_exact;
+	// How far each probability could be off, as the half-width of a 95%
+	// confidence interval around it: m_margin[i][v] for square v of
+	// component i, and m_imargin for the squares away from the frontier.
+	// Null unless some components were sampled (and 0 everywhere).
+	private double[][] m_margin;
+	private double m_imargin;
+	// The number of components each engine solved, by the engine's name.
+	// Components taken from the cache count under "cache".
+	private LinkedHashMap<String, Integer> m_engines;
+	
+	// Cached values of log(n!), shared between calculators and grown as
+	// bigger boards come along.
+	private static double[] s_logfact = new double[] {0};
+	
+	// The number of threads used to solve the components, and the pool
+	// they live in (null when everything is done on the calling thread).
+	// The pool is made when it is first needed.
+	private static int s_parallelism = Runtime.getRuntime().availableProcessors();
+	private static ForkJoinPool s_pool;
+	
+	// The number of standard errors either side of a sampled probability
+	// which make up a 95% confidence interval, when it is the mean of n
+	// batches: s_t[n - 2] (Student's t with n - 1 degrees of freedom), or
+	// s_z if there are more batches than that.
+	private static final double[] s_t = new double[] {
+		12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306,
+		2.262, 2.228, 2.201, 2.179, 2.160, 2.145, 2.131
+	};
+	private static final double s_z = 1.96;
+	
+	// How close the number of layouts with a mine in a square must come to
+	// the number of layouts, relative to it, for the square to count as a
+	// mine in every layout. Counts from the transfer sweep are rescaled, so
+	// they are hardly ever equal to the last bit.
+	private static final double s_always = 1e-9;
 	
 	///////////////////////////////////////////////////////////////////////////
 	//								CONSTRUCTORS							 //
@@ -28,271 +94,219 @@ public class Calculator {
 	 * probabilities accordingly.
 	 */
 	public Calculator(Board m) {
+		this(m, null);
+	}
+	
+	/**
+	 * Takes the given board, and fills in the grid of probabilities
+	 * accordingly, unless it is told to stop part way through. The board must
+	 * not be changed afterwards, as the probabilities are read off it as they
+	 * are asked for.
+	 * 
+	 * @param m The board to calculate probabilities for
+	 * @param cancel If this is (or becomes) true, the calculation is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 */
+	public Calculator(Board m, AtomicBoolean cancel) {
+		this(m, null, cancel);
+	}
+	
+	/**
+	 * Takes the given board, and fills in the grid of probabilities
+	 * accordingly, re-using any components which have already been solved
+	 * (and saving the ones it has to solve itself for next time). The board
+	 * must not be changed afterwards.
+	 * 
+	 * @param m The board to calculate probabilities for
+	 * @param cache Solved components from earlier calculations. May be null.
+	 * @param cancel If this is (or becomes) true, the calculation is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 */
+	public Calculator(Board m, ComponentCache cache, AtomicBoolean cancel) {
+		this(m, EngineSelector.standard(), cache, cancel, false, 0);
+	}
+	
+	/**
+	 * Takes the given board, and fills in the grid of probabilities as well
+	 * as it can by the given deadline. Any component which has not been
+	 * enumerated by then has its layouts estimated instead, and exact() says
+	 * whether that happened. Everything else is as for the constructor
+	 * above.
+	 * 
+	 * @param m The board to calculate probabilities for
+	 * @param cache Solved components from earlier calculations. May be null.
+	 * 				Components which ran out of time are not saved in it.
+	 * @param cancel If this is (or becomes) true, the calculation is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 * @param deadline When the components must be solved by, in
+	 * 				   System.nanoTime() terms
+	 */
+	public Calculator(Board m, ComponentCache cache, AtomicBoolean cancel, long deadline) {
+		this(m, EngineSelector.standard(), cache, cancel, true, deadline);
+	}
+	
+	/**
+	 * As Calculator(Board, ComponentCache, AtomicBoolean), but with the
+	 * engine for each component picked by the given selector rather than the
+	 * standard one.
+	 */
+	public Calculator(Board m, EngineSelector selector, ComponentCache cache, AtomicBoolean cancel) {
+		this(m, selector, cache, cancel, false, 0);
+	}
+	
+	/**
+	 * As Calculator(Board, ComponentCache, AtomicBoolean, long), but with
+	 * the engine for each component picked by the given selector rather than
+	 * the standard one.
+	 */
+	public Calculator(Board m, EngineSelector selector, ComponentCache cache, AtomicBoolean cancel,
+			long deadline) {
+		this(m, selector, cache, cancel, true, deadline);
+	}
+	
+	/**
+	 * Does the work for the constructors above, with or without a deadline.
+	 */
+	private Calculator(Board m, EngineSelector selector, ComponentCache cache, AtomicBoolean cancel,
+			boolean hasdeadline, long deadline) {
 		
-		// Set up some local variables.
 		m_field = m;
-		int rows = m.rows();
-		int cols = m.cols();
-
-		// The number of variables and equations we will be using to solve for
-		// the probabilities. We start from one, because there is always the
-		// x_0 variable which we denote as the probability of any square not
-		// adjacent to a known square being a mine.
-		int numvars = 1;
-		int numequations = 1;
 		
-		// Create the matrix that will eventually hold the probabilities of any
-		// square being a mine.
-		m_prob = new double[rows][cols];
+		// Split the frontier into regions, and decide the squares which the
+		// numbers give away by themselves. They are certainly safe or
+		// certainly mines, so there is no need to enumerate them, and they
+		// are left out of the components. With a cache, this is the frontier
+		// of the last calculation, with only the regions near the squares
+		// which have changed since worked out again.
+		Frontier known = (cache == null) ? new Frontier(m) : cache.frontier(m);
 		
-		// Holds the variables representing the probability of each square.
-		//     -1 : The square is known or flagged already.
-		//	    0 : The square is not adjacent to a known square, and so has
-		//          the same probability as any square with a 0 (So I guess
-		//          technically this is the same as n...).
-		//      n : This square has probability x_n
-		int[][] vars = new int[rows][cols];
+		// The unknown squares which are not on the frontier all share the
+		// remaining mines equally. The decided mines are already placed.
+		int numvars = known.squares() - known.mines() - known.safe();
+		int interior = m.unknown() - known.squares();
+		int left = m.mines_left() - known.mines();
 		
-		// Determine which squares need calculating, and how many equations we
-		// will have to deal with.
-		for (int r = 0; r < rows; r++) {
-			for (int c = 0; c < cols; c++) {
-				// If the square is unknown and next to a known square, then it
-				// is a variable we will have to calculate.
-				if (m_field.at(r, c) == Square.UNKNOWN &&
-					m_field.known_adjacent(r, c)) {
-					vars[r][c] = numvars;
-					numvars++;
-				}
-				
-				// If a square is unknown, but not next to a known square, then
-				// it has the same probability of being a mine as all other
-				// such squares (which we will denote with x_0).
-				else if (m_field.at(r,c) == Square.UNKNOWN) {
-					vars[r][c] = 0;
-				}
-				
-				// If a square is known...
-				else {
-					// This is a known square, so we don't calculate it.
-					vars[r][c] = -1;
-					
-					// If this square is adjacent to an unknown square, we can
-					// generate an equation from it.
-					if (m_field.at(r,c) != Square.FLAG &&
-						m_field.unknown_adjacent(r, c)) {
-						numequations++;
-					}
+		// Solve each component on its own. No component can use more mines
+		// than are left in the game. Components which were solved in the
+		// last calculation, or are in the cache, are already solved, and
+		// usually only the ones near the last move are not. The rest are
+		// shared out between the threads of the pool, and big ones are split
+		// up further inside.
+		m_comps = known.components();
+		m_regions = known.regions();
+		ArrayList<Component> unsolved = new ArrayList<Component>();
+		m_engines = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < m_comps.length; i++) {
+			if (m_comps[i].solved() && m_comps[i].maxMines() >= Math.min(left, m_comps[i].size())) {
+				count(m_engines, "cache");
+				continue;
+			}
+			m_comps[i] = new Component(m_comps[i]);
+			Component cached = (cache == null) ? null : cache.get(m_comps[i], left);
+			if (cached != null) {
+				m_comps[i] = cached;
+				known.solved(cached);
+				count(m_engines, "cache");
+			}
+			else {
+				if (hasdeadline) {
+					m_comps[i].setDeadline(deadline);
 				}
+				unsolved.add(m_comps[i]);
 			}
 		}
-		
-		// Create the system of equations we will be using to calculate our
-		// probabilities.
-		LinearSystem s = new LinearSystem(numvars, numequations);
-		
-		// Create the equation for x_0.
-		ArrayList<Double> zeroequation = new ArrayList<Double>();
-		// The coefficient for x_0 is the number of unknown squares which are
-		// not already variables (we add 1 because the x_0 variable itself does
-		// not denote a square).
-		zeroequation.add((double) (m_field.unknown() - numvars + 1));
-		for (int v = 1; v < numvars; v++) {
-			// The coefficient for every variable which is not x_0 is a 1.
-			zeroequation.add(1.0);
-		}
-		// These values should all add up to the number of mines which have not
-		// already been flagged.
-		zeroequation.add((double) m_field.mines_left());
-		s.add_equation(zeroequation);
-		
-		// Generate all of the other equations we can.
-		for (int r = 0; r < rows; r++) {
-			for (int c = 0; c < cols; c++) {
-				// If the square is known and has some unknowns next to it,
-				// then we can make an equation out of it.
-				if (m_field.known(r,c) &&
-				    m_field.unknown_adjacent(r,c)) {
-					
-					// Create blank equation.
-					ArrayList<Double> equation = new ArrayList<Double>();
-					for(int i = 0; i <= numvars; i++) {
-						equation.add((double) 0);
-					}
-					
-					// The number of flags surrounding the square.
-					int num_flags = 0;
-					
-					// Determine which unknowns participate in the equation.
-					
-					// Check top-left.
-					if (m_field.unknown(r-1, c-1)) {
-						int v = vars[r-1][c-1];
-						if (v > 0) {
-							equation.set(v,  1.0);
-						}
-					}
-					else if (m_field.at(r-1,c-1) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check top.
-					if (m_field.unknown(r-1, c)) {
-						int v = vars[r-1][c];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r-1,c) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check top-right.
-					if (m_field.unknown(r-1, c+1)) {
-						int v = vars[r-1][c+1];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r-1,c+1) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check left.
-					if (m_field.unknown(r, c-1)) {
-						int v = vars[r][c-1];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r,c-1) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check right.
-					if (m_field.unknown(r, c+1)) {
-						int v = vars[r][c+1];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r,c+1) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check bottom-left.
-					if (m_field.unknown(r+1, c-1)) {
-						int v = vars[r+1][c-1];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r+1,c-1) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check bottom.
-					if (m_field.unknown(r+1, c)) {
-						int v = vars[r+1][c];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r+1,c) == Square.FLAG) {
-						num_flags++;
-					}
-					// Check bottom-right.
-					if (m_field.unknown(r+1, c+1)) {
-						int v = vars[r+1][c+1];
-						if (v > 0) {
-							equation.set(v, 1.0);
-						}
-					}
-					else if (m_field.at(r+1,c+1) == Square.FLAG) {
-						num_flags++;
+		try {
+			String[] used = solveAll(unsolved.toArray(new Component[0]), left, pool(), cancel, known,
+					cache, selector);
+			for (String name : used) {
+				count(m_engines, name);
+			}
+			for (Component solved : unsolved) {
+				if (solved.exact()) {
+					known.solved(solved);
+					if (cache != null) {
+						cache.put(solved);
 					}
-					// Add the solution (the contents of this square minus
-					// the number of flags already surrounding it) to the end
-					// of the equation, and add this equation to the system.
-					equation.set(numvars, (double) Square.toInt(m_field.at(r,c)) - num_flags);
-					s.add_equation(equation);
 				}
 			}
 		}
-
-		// Put the system into reduced row-echelon form.
-		s.rref();
-		
-		// Determine which variables belong to the minimal set of dependencies
-		// for solving our set of equations (we call these 'u-variables').
-		// These variables will be the ones which are not pivots in a row.
-		ArrayList<Integer> uvars = new ArrayList<Integer>();
-		int pivot_row = 0;
-		for (int c = 0; c < numvars; c++) {
-			for (int r = 0; r < numequations; r++) {
-				if (s.get(r,c) != 0 && r != pivot_row) {
-					pivot_row--;
-					if (!uvars.contains(c)) {
-						uvars.add(c);
-					}
-					break;
-				}
+		finally {
+			// The frontier is up to date either way, for the next
+			// calculation to start from.
+			if (cache != null) {
+				cache.keep(known);
 			}
-			pivot_row++;
 		}
-		
-		// Generate the probability array for our variables.
-		ArrayList<Double> probabilities = new ArrayList<Double>();
-		for (int v = 0; v < numvars; v++) {
-			probabilities.add((double) 0);
+		m_exact = true;
+		for (Component comp : m_comps) {
+			m_exact = m_exact && comp.exact();
 		}
 		
-		// This is the number of possible mine combinations for our variables,
-		// without taking into account any limiting factors of the game of
-		// minesweeper. Not all variables are considered, only those in the
-		// so called u-vector.
-		int possibilities = (int) Math.pow(2, uvars.size());
-		int total_valid = 0;
+		// How much each frontier layout counts for, by the number of mines
+		// it uses.
+		double[] weights = weights(numvars, interior, left);
 		
-		// For each possible mine orientation for our u-vectors.
-		for (int i = 0; i < possibilities; i++) {
-			ArrayList<Integer> uvals = getPermutation(i, possibilities);
-			// If the vales for our u-variables generate a plausible minefield.
-			if (s.canSolve(uvars, uvals)) {
-				// Add the results for each variable to our probability array.
-				// Other than x_0, this should be a 0 or a 1.
-				for (int v = 0; v < numvars; v++) {
-					probabilities.set(v, probabilities.get(v) + s.solveFor(v, uvars, uvals));
-				}
-
-				// Increment the number of valid solutions we have found.
-				total_valid++;
-			}
-		}
+		// Combine the components to get what each of their squares needs
+		// for its probability, and the chance of each interior square.
+		int numcomps = m_comps.length;
+		m_factor = new double[numcomps][];
+		m_scale = new int[numcomps];
+		double[] totals = combine(m_comps, weights, left, m_factor, m_scale);
+		m_total = totals[0];
 		
-		// Divide each probability by the number of valid solutions found to
-		// get the actual probability of each square being a mine.
-		for (int v = 0; v < numvars; v++) {
-			probabilities.set(v, probabilities.get(v) / total_valid);
-		}
+		// If the board contradicts itself, there are no probabilities to
+		// give, even if the frontier on its own has layouts.
+		m_consistent = (m_total > 0) && known.consistent();
+		m_interior = m_consistent ? totals[1] / interior / m_total : Double.NaN;
 		
-		// Populate the probabilities matrix.
-		for (int r = 0; r < rows; r++) {
-			for (int c = 0; c < cols; c++) {
-				int v = vars[r][c];
-				
-				// This square is already known.
-				if (v == -1) {
-					// If it is a flag, it has a 100% chance of being a mine,
-					// unless the player has been flagging willy-nilly.
-					if (m_field.at(r,c) == Square.FLAG) {
-						m_prob[r][c] = 1;
+		// If some components were sampled, combine each batch of their
+		// samples by itself as well. How much the answers of the batches
+		// differ shows how far the answer of all of them together could be
+		// off.
+		int batches = Integer.MAX_VALUE;
+		for (Component sampled : m_comps) {
+			if (!sampled.exact() && sampled.batches() > 0) {
+				batches = Math.min(batches, sampled.batches());
+			}
+		}
+		if (batches != Integer.MAX_VALUE) {
+			double[][] sum = new double[numcomps][];
+			double[][] sumsq = new double[numcomps][];
+			for (int i = 0; i < numcomps; i++) {
+				sum[i] = new double[m_comps[i].size()];
+				sumsq[i] = new double[m_comps[i].size()];
+			}
+			double[][] factor = new double[numcomps][];
+			int[] scale = new int[numcomps];
+			double isum = 0;
+			double isumsq = 0;
+			for (int b = 0; b < batches; b++) {
+				Component[] view = m_comps.clone();
+				for (int i = 0; i < numcomps; i++) {
+					if (m_comps[i].batches() > 0) {
+						view[i] = m_comps[i].batch(b);
 					}
-					// Otherwise, the square is uncovered, and so it has a 0%
-					// chance of being a mine.
-					else {
-						m_prob[r][c] = 0;
+				}
+				double[] t = combine(view, weights, left, factor, scale);
+				for (int i = 0; i < numcomps; i++) {
+					for (int v = 0; v < view[i].size(); v++) {
+						double p = chance(view[i], v, factor[i], scale[i], t[0]);
+						sum[i][v] += p;
+						sumsq[i][v] += p * p;
 					}
 				}
-				// The square has a variable associated with it.
-				else {
-					m_prob[r][c] = probabilities.get(v);
+				double ip = (interior == 0) ? 0 : t[1] / interior / t[0];
+				isum += ip;
+				isumsq += ip * ip;
+			}
+			m_margin = new double[numcomps][];
+			for (int i = 0; i < numcomps; i++) {
+				m_margin[i] = new double[m_comps[i].size()];
+				for (int v = 0; v < m_comps[i].size(); v++) {
+					m_margin[i][v] = margin(sum[i][v], sumsq[i][v], batches);
 				}
 			}
+			m_imargin = margin(isum, isumsq, batches);
 		}
 	}
 	
@@ -300,6 +314,13 @@ public class Calculator {
 	//								ACCESSORS								 //
 	///////////////////////////////////////////////////////////////////////////
 	
+	/**
+	 * Returns the board the probabilities were calculated for.
+	 */
+	public Board board() {
+		return m_field;
+	}
+	
 	/**
 	 * Returns the probability of a given square being a mine, or -1 if an
 	 * out-of-bounds square is given.
@@ -308,7 +329,125 @@ public class Calculator {
 		if (r < 0 || c < 0 || r >= m_field.rows() || c >= m_field.cols()) {
 			return -1;
 		}
-		return m_prob[r][c];
+		
+		// Flags have a 100% chance of being mines, unless the player has
+		// been flagging willy-nilly, and uncovered squares a 0% chance.
+		if (m_field.at(r, c) == Square.FLAG) {
+			return 1;
+		}
+		if (m_field.at(r, c) != Square.UNKNOWN) {
+			return 0;
+		}
+		if (!m_consistent) {
+			return Double.NaN;
+		}
+		
+		// Unknown squares away from the frontier split whatever mines the
+		// frontier leaves behind, and decided squares are exactly safe or
+		// exactly mines.
+		Long where = where(r, c);
+		if (where == null) {
+			return m_interior;
+		}
+		if (where < 0) {
+			return -1 - where;
+		}
+		int i = (int) (where >>> 32);
+		return chance(m_comps[i], (int) (long) where, m_factor[i], m_scale[i], m_total);
+	}
+	
+	/**
+	 * Returns false if there is no way of placing the mines which agrees with
+	 * the board, in which case the probabilities of the unknown squares are
+	 * meaningless (NaN). This only happens when some flags are wrong: every
+	 * revealed number next to a flag is checked, including those with no
+	 * unknown squares left around them.
+	 */
+	public boolean consistent() {
+		return m_consistent;
+	}
+	
+	/**
+	 * Returns false if some of the probabilities are only estimates, because
+	 * the calculation ran out of time.
+	 */
+	public boolean exact() {
+		return m_exact;
+	}
+	
+	/**
+	 * Returns true if the probability of a given square is exact, even if
+	 * others are only estimates. Out-of-bounds squares are never exact.
+	 */
+	public boolean exact(int r, int c) {
+		if (r < 0 || c < 0 || r >= m_field.rows() || c >= m_field.cols()) {
+			return false;
+		}
+		
+		// Only the squares which don't depend on the estimates at all are
+		// still exact: those which are known, flagged or decided, and those
+		// in exact components which are safe (or mines) in every layout.
+		if (m_exact || m_field.at(r, c) != Square.UNKNOWN) {
+			return true;
+		}
+		Long where = where(r, c);
+		if (where == null) {
+			return false;
+		}
+		if (where < 0) {
+			return true;
+		}
+		Component comp = m_comps[(int) (where >>> 32)];
+		int v = (int) (long) where;
+		if (!comp.exact()) {
+			return false;
+		}
+		boolean never = true;
+		boolean always = true;
+		for (int k = 0; k < comp.size() + 1; k++) {
+			never = never && comp.cellCount(k, v) == 0;
+			always = always && Math.abs(comp.cellCount(k, v) - comp.count(k)) <= s_always * comp.count(k);
+		}
+		return never || always;
+	}
+	
+	/**
+	 * Returns how far the probability of a given square could be off, as
+	 * the half-width of a 95% confidence interval around it. This is only
+	 * ever more than 0 for squares whose probability was sampled (or
+	 * depends on one which was). Returns -1 for out-of-bounds squares.
+	 */
+	public double margin(int r, int c) {
+		if (r < 0 || c < 0 || r >= m_field.rows() || c >= m_field.cols()) {
+			return -1;
+		}
+		if (m_margin == null || m_field.at(r, c) != Square.UNKNOWN) {
+			return 0;
+		}
+		Long where = where(r, c);
+		if (where == null) {
+			return m_imargin;
+		}
+		if (where < 0) {
+			return 0;
+		}
+		return m_margin[(int) (where >>> 32)][(int) (long) where];
+	}
+	
+	/**
+	 * Returns the number of threads used to calculate probabilities.
+	 */
+	public static synchronized int parallelism() {
+		return s_parallelism;
+	}
+	
+	/**
+	 * Returns the number of components each engine solved, by the engine's
+	 * name. Components which were already solved, in the cache, count under
+	 * "cache".
+	 */
+	public Map<String, Integer> engines() {
+		return Collections.unmodifiableMap(m_engines);
 	}
 	
 	/**
@@ -323,8 +462,14 @@ public class Calculator {
 			return "";
 		}
 		
+		// There is no sensible probability to show.
+		double p = prob(r, c);
+		if (Double.isNaN(p)) {
+			return "?.???";
+		}
+		
 		// Get the probability.
-		String s = Double.toString(m_prob[r][c]);
+		String s = Double.toString(p);
 		int leftover = 6 - s.length();
 		// Pad with zeros if too short.
 		while (leftover > 0) {
@@ -336,30 +481,307 @@ public class Calculator {
 		return s;
 	}
 	
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Sets the number of threads used to calculate probabilities from now
+	 * on. With a single thread, everything is done on the thread which
+	 * creates the Calculator. The probabilities are exactly the same however
+	 * many threads are used.
+	 */
+	public static synchronized void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		if (parallelism != s_parallelism && s_pool != null) {
+			s_pool.shutdown();
+			s_pool = null;
+		}
+		s_parallelism = parallelism;
+	}
+	
 	///////////////////////////////////////////////////////////////////////////
 	//							PRIVATE FUNCTIONS							 //
 	///////////////////////////////////////////////////////////////////////////
 	
 	/**
-	 * Returns the 'current'th permutation of 'total' such permutations in
-	 * binary.
-	 * 
-	 * For example: getPermutation(3,4) returns (1,1) - the third permutation
-	 * of the set {0,1} when there are four total permutations.
+	 * Combines the components' mine count distributions. For each component
+	 * i, fills in factor[i][k], the (weighted) number of ways the rest of
+	 * the board can be filled in if it uses k mines, divided by 2^scale[i]
+	 * (see chance()). Returns the total weight of every valid layout of the
+	 * frontier, and the total number of mines (times that weight) they leave
+	 * for the interior.
+	 */
+	private static double[] combine(Component[] comps, double[] weights, int left, double[][] factor,
+			int[] scale) {
+		int numcomps = comps.length;
+		
+		// prefix[i] is the distribution of mines over components 0 to i-1,
+		// and suffix[i] is the distribution over components i to the end.
+		// With enough components these would overflow, so each is divided
+		// by a power of two to bring it near 1, and the powers kept in
+		// prefixexp and suffixexp. (Powers of two don't change any rounding,
+		// so this makes no difference to the probabilities.)
+		double[][] prefix = new double[numcomps + 1][];
+		double[][] suffix = new double[numcomps + 1][];
+		int[] prefixexp = new int[numcomps + 1];
+		int[] suffixexp = new int[numcomps + 1];
+		prefix[0] = new double[] {1};
+		suffix[numcomps] = new double[] {1};
+		for (int i = 0; i < numcomps; i++) {
+			prefix[i + 1] = convolve(prefix[i], comps[i].counts());
+			prefixexp[i + 1] = prefixexp[i] + normalise(prefix[i + 1]);
+		}
+		for (int i = numcomps - 1; i >= 0; i--) {
+			suffix[i] = convolve(comps[i].counts(), suffix[i + 1]);
+			suffixexp[i] = suffixexp[i + 1] + normalise(suffix[i]);
+		}
+		
+		// Total up the valid layouts of the whole frontier, along with the
+		// number of mines they leave for the interior.
+		double[] all = prefix[numcomps];
+		double total_valid = 0;
+		double interior_mines = 0;
+		for (int k = 0; k < all.length; k++) {
+			double w = weights[k] * all[k];
+			total_valid += w;
+			interior_mines += w * (left - k);
+		}
+		
+		// For each component, combine its layouts with those of every other
+		// component.
+		for (int i = 0; i < numcomps; i++) {
+			double[] others = convolve(prefix[i], suffix[i + 1]);
+			factor[i] = new double[comps[i].size() + 1];
+			for (int k = 0; k < factor[i].length; k++) {
+				for (int o = 0; o < others.length; o++) {
+					factor[i][k] += weights[k + o] * others[o];
+				}
+			}
+			
+			// The others were divided by a different power of two than the
+			// total.
+			scale[i] = prefixexp[i] + suffixexp[i + 1] - prefixexp[numcomps];
+		}
+		return new double[] {total_valid, interior_mines};
+	}
+	
+	/**
+	 * Returns the probability of square v of a component being a mine,
+	 * given the factors and scale combine() worked out for the component,
+	 * and the total weight of every layout.
+	 */
+	private static double chance(Component comp, int v, double[] factor, int scale, double total) {
+		double p = 0;
+		for (int k = 0; k < factor.length; k++) {
+			p += comp.cellCount(k, v) * factor[k];
+		}
+		return Math.scalb(p / total, scale);
+	}
+	
+	/**
+	 * Returns where square (r,c) is among the frontier squares (see
+	 * m_where), or null if it isn't one.
+	 */
+	private Long where(int r, int c) {
+		return index().get(r * m_field.cols() + c);
+	}
+	
+	/**
+	 * Returns m_where, making it first if it hasn't been made yet.
+	 */
+	private synchronized HashMap<Integer, Long> index() {
+		if (m_where == null) {
+			int cols = m_field.cols();
+			HashMap<Integer, Long> where = new HashMap<Integer, Long>();
+			for (Frontier.Region region : m_regions) {
+				for (int n = 0; n < region.size(); n++) {
+					int value = region.known().at(region.row(n), region.col(n));
+					if (value != -1) {
+						where.put(region.row(n) * cols + region.col(n), (long) (-1 - value));
+					}
+				}
+			}
+			for (int i = 0; i < m_comps.length; i++) {
+				for (int v = 0; v < m_comps[i].size(); v++) {
+					where.put(m_comps[i].row(v) * cols + m_comps[i].col(v), ((long) i << 32) | v);
+				}
+			}
+			m_where = where;
+		}
+		return m_where;
+	}
+	
+	/**
+	 * Divides every number in the array by the same power of two, so that
+	 * the biggest is between 1 and 2, and returns that power.
+	 */
+	private static int normalise(double[] a) {
+		double max = 0;
+		for (double x : a) {
+			max = Math.max(max, x);
+		}
+		if (max == 0 || Double.isInfinite(max)) {
+			return 0;
+		}
+		int exp = Math.getExponent(max);
+		for (int i = 0; i < a.length; i++) {
+			a[i] = Math.scalb(a[i], -exp);
+		}
+		return exp;
+	}
+	
+	/**
+	 * Returns the half-width of a 95% confidence interval around the mean
+	 * of n estimates, given their sum and the sum of their squares.
+	 */
+	private static double margin(double sum, double sumsq, int n) {
+		if (n < 2) {
+			return 1;
+		}
+		double mean = sum / n;
+		double variance = Math.max(sumsq / n - mean * mean, 0) * n / (n - 1);
+		double t = (n - 2 < s_t.length) ? s_t[n - 2] : s_z;
+		return t * Math.sqrt(variance / n);
+	}
+	
+	/**
+	 * Returns the pool the components are solved in, or null if only one
+	 * thread is to be used.
+	 */
+	private static synchronized ForkJoinPool pool() {
+		if (s_parallelism < 2) {
+			return null;
+		}
+		if (s_pool == null) {
+			s_pool = new ForkJoinPool(s_parallelism);
+		}
+		return s_pool;
+	}
+	
+	/**
+	 * Solves every component, one task per component, in the given pool (or
+	 * one after another on this thread if there is no pool). Returns the
+	 * name of the engine which solved each one.
+	 */
+	private static String[] solveAll(final Component[] comps, final int left, final ForkJoinPool pool,
+			final AtomicBoolean cancel, final Frontier known, final ComponentCache cache,
+			final EngineSelector selector) {
+		final String[] used = new String[comps.length];
+		if (pool == null) {
+			for (int i = 0; i < comps.length; i++) {
+				used[i] = solveOne(comps[i], left, null, cancel, known, cache, selector);
+			}
+			return used;
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (int i = 0; i < comps.length; i++) {
+					final int n = i;
+					tasks.add(new RecursiveAction() {
+						protected void compute() {
+							used[n] = solveOne(comps[n], left, pool, cancel, known, cache, selector);
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+		});
+		return used;
+	}
+	
+	/**
+	 * Solves a single component with the first engine the selector offers
+	 * which accepts it, and returns that engine's name.
+	 */
+	private static String solveOne(Component comp, int left, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, ComponentCache cache, EngineSelector selector) {
+		for (ProbabilityEngine engine : selector.choose(comp, left)) {
+			if (engine.solve(comp, left, pool, cancel, known, cache)) {
+				return engine.name();
+			}
+		}
+		throw new IllegalStateException("no engine accepted the component");
+	}
+	
+	/**
+	 * Adds one to the count under the given name.
+	 */
+	private static void count(Map<String, Integer> counts, String name) {
+		Integer count = counts.get(name);
+		counts.put(name, (count == null) ? 1 : count + 1);
+	}
+	
+	/**
+	 * Returns the distribution of the sum of two independent mine counts,
+	 * where a[i] and b[j] are the number of ways of using i and j mines.
+	 */
+	private static double[] convolve(double[] a, double[] b) {
+		double[] result = new double[a.length + b.length - 1];
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == 0) {
+				continue;
+			}
+			for (int j = 0; j < b.length; j++) {
+				result[i + j] += a[i] * b[j];
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the weight of each frontier layout, indexed by the number of
+	 * mines it uses (up to 'numvars').
 	 * 
-	 * @param current, The n in 'n'th permutation.
-	 * @param total, The total number of permutations (it better be a power of
-	 * 				 two...)
+	 * Every way of placing the rest of the mines among the 'interior' squares
+	 * is a different layout of the whole board, and all of those are equally
+	 * likely. So a frontier layout using k mines stands for
+	 * C(interior, left - k) layouts of the board. These numbers are huge, so
+	 * they are worked out as logarithms and scaled so that the largest weight
+	 * is 1 (only their ratios matter).
 	 */
-	private ArrayList<Integer> getPermutation(int current, int total) {
-		// If we have no variables, return empty list
-		if (total == 0 || total == 1) {
-			return new ArrayList<Integer>(0);
+	private static double[] weights(int numvars, int interior, int left) {
+		double[] logfact = logFactorials(Math.max(interior, 0));
+		
+		double[] logw = new double[numvars + 1];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k <= numvars; k++) {
+			int rest = left - k;
+			if (rest < 0 || rest > interior) {
+				logw[k] = Double.NEGATIVE_INFINITY;
+			}
+			else {
+				logw[k] = logfact[interior] - logfact[rest] - logfact[interior - rest];
+			}
+			max = Math.max(max, logw[k]);
 		}
 		
-		ArrayList<Integer> p = getPermutation(current/2, total/2);
-		p.add(current % 2);
-		return p;
+		double[] weights = new double[numvars + 1];
+		for (int k = 0; k <= numvars; k++) {
+			if (logw[k] != Double.NEGATIVE_INFINITY) {
+				weights[k] = Math.exp(logw[k] - max);
+			}
+		}
+		return weights;
+	}
+	
+	/**
+	 * Returns a table of log(n!) which goes up to at least n, growing the
+	 * shared cache if it is not yet big enough.
+	 */
+	private static synchronized double[] logFactorials(int n) {
+		if (s_logfact.length <= n) {
+			double[] table = new double[Math.max(n + 1, 2 * s_logfact.length)];
+			System.arraycopy(s_logfact, 0, table, 0, s_logfact.length);
+			for (int i = s_logfact.length; i < table.length; i++) {
+				table[i] = table[i - 1] + Math.log(i);
+			}
+			s_logfact = table;
+		}
+		return s_logfact;
 	}
 	
 }
@@ -0,0 +1,1666 @@
+package probcalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connected island of frontier squares (unknown squares adjacent to a known
+ * square), together with the numbered squares which constrain them.
+ *
+ * Two frontier squares are in the same component if they are adjacent to a
+ * common numbered square, or are linked through a chain of such squares. The
+ * mine layouts of two different components have nothing to do with each
+ * other, except that together they cannot use more than the mines left in the
+ * game. This means each component can be enumerated on its own, and the
+ * results combined by the Calculator afterwards.
+ *
+ * A big component can also be split up inside itself, across the threads of
+ * a ForkJoinPool. Each thread keeps its own tallies, which are added together
+ * once every layout has been counted. The tallies are whole numbers, so the
+ * order in which they are added makes no difference, and the results are
+ * exactly the same as on a single thread.
+ */
+public class Component {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The row and column of each square in the component. Square i of the
+	// component is (m_rows[i], m_cols[i]) on the board.
+	private int[] m_rows;
+	private int[] m_cols;
+
+	// The constraints on the component. Constraint j says that the squares
+	// listed in m_constraints[j] contain exactly m_values[j] mines.
+	private int[][] m_constraints;
+	private int[] m_values;
+
+	// The result of solving the component. m_counts[k] is the number of valid
+	// mine layouts which use exactly k mines, and m_cellcounts[k][i] is the
+	// number of those layouts in which square i is a mine.
+	private double[] m_counts;
+	private double[][] m_cellcounts;
+
+	// Running tallies of the layouts found so far, one for each thread
+	// taking part in the enumeration. m_local hands each thread its own
+	// tally, and m_tallies lists all of them so they can be added up at the
+	// end.
+	private List<Tally> m_tallies;
+	private ThreadLocal<Tally> m_local;
+
+	// The most mines the component may use. Layouts with more are not
+	// counted.
+	private int m_maxmines;
+
+	// Search state shared by every thread while enumerating layouts.
+	// m_cellcons[i] lists the constraints square i takes part in, m_order is
+	// the order in which squares are decided, and the search is split up
+	// between threads until m_splitdepth squares have been decided.
+	private int[][] m_cellcons;
+	private int[] m_order;
+	private int m_splitdepth;
+
+	// The reduced system of equations the component was solved with, if it
+	// was solved by elimination. The components which take its place after
+	// a move can start from this rather than reducing everything again. Its
+	// first size() unknowns are the component's squares. Any after that are
+	// squares which have since been fixed to a value.
+	private LinearSystem m_system;
+
+	// Set (by another thread) if the enumeration should be given up on.
+	// This may be null, if it is never to be given up on.
+	private AtomicBoolean m_cancel;
+
+	// If m_hasdeadline is set, the enumeration must be over by m_deadline
+	// (in System.nanoTime() terms). If it isn't, the counts are estimated
+	// instead.
+	private long m_deadline;
+	private boolean m_hasdeadline;
+
+	// False if the counts are only an estimate, because the enumeration ran
+	// out of time or the component was sampled.
+	private boolean m_exact;
+
+	// If the component was sampled, m_batches[b] is a solved copy of it
+	// whose counts come from batch b of the samples alone. Null if it wasn't
+	// sampled.
+	private Component[] m_batches;
+
+	// Components smaller than this are never split up between threads, as
+	// they are over before the threads could get going.
+	private static final int s_minsplitsize = 20;
+
+	// Cancellation is checked once every (s_checkmask + 1) steps of the
+	// enumeration.
+	private static final int s_checkmask = 0xfff;
+
+	// The number of times every constraint is gone over when estimating the
+	// chance of each square being a mine.
+	private static final int s_sweeps = 50;
+
+	// Estimated chances are kept this far away from 0 and 1.
+	private static final double s_minchance = 1e-6;
+
+	// The number of batches samples are taken in. Each batch has its own
+	// stream of random numbers, and can run on its own thread.
+	private static final int s_numbatches = 16;
+
+	// solveByTransfer gives up on components which would need more than this
+	// many constraints open at once, or more than s_maxstates states at any
+	// step. Each open constraint takes s_slotbits bits of a state.
+	private static final int s_slotbits = 4;
+	private static final int s_maxslots = 64 / s_slotbits;
+	private static final int s_maxstates = 1 << 14;
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. The component is not solved until one of the
+	 * solve functions is called.
+	 *
+	 * @param rows The row of each square in the component
+	 * @param cols The column of each square in the component
+	 * @param constraints For each constraint, the indices (into rows/cols) of
+	 * 					  the squares it covers
+	 * @param values For each constraint, the number of mines its squares
+	 * 				 must contain
+	 */
+	public Component(int[] rows, int[] cols, int[][] constraints, int[] values) {
+		m_rows = rows;
+		m_cols = cols;
+		m_constraints = constraints;
+		m_values = values;
+	}
+
+	/**
+	 * Makes an unsolved component with the same squares and constraints as
+	 * another (solved or not).
+	 */
+	public Component(Component other) {
+		this(other.m_rows, other.m_cols, other.m_constraints, other.m_values);
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the number of squares in the component.
+	 */
+	public int size() {
+		return m_rows.length;
+	}
+
+	/**
+	 * Returns the number of constraints on the component.
+	 */
+	public int constraints() {
+		return m_constraints.length;
+	}
+
+	/**
+	 * Returns the board row of the component's i'th square.
+	 */
+	public int row(int i) {
+		return m_rows[i];
+	}
+
+	/**
+	 * Returns the board column of the component's i'th square.
+	 */
+	public int col(int i) {
+		return m_cols[i];
+	}
+
+	/**
+	 * Returns the number of valid mine layouts for the component, indexed by
+	 * the number of mines they use. Only meaningful once the component has
+	 * been solved.
+	 */
+	public double[] counts() {
+		return m_counts;
+	}
+
+	/**
+	 * Returns the number of valid mine layouts for the component which use
+	 * exactly k mines. Only meaningful once the component has been
+	 * solved.
+	 */
+	public double count(int k) {
+		return m_counts[k];
+	}
+
+	/**
+	 * Returns the number of valid mine layouts for the component which use
+	 * exactly k mines and have a mine in square i. Only meaningful once the
+	 * component has been solved.
+	 */
+	public double cellCount(int k, int i) {
+		// Sampling leaves out the rows for mine counts it never saw.
+		double[] row = m_cellcounts[k];
+		return (row == null) ? 0 : row[i];
+	}
+
+	/**
+	 * Returns the reduced system of equations the component was solved
+	 * with, or null if it was not solved by elimination.
+	 */
+	public LinearSystem system() {
+		return m_system;
+	}
+
+	/**
+	 * Returns true once the component has been solved.
+	 */
+	public boolean solved() {
+		return m_counts != null;
+	}
+
+	/**
+	 * Returns true if the counts are exact, or false if the component ran
+	 * out of time or was sampled, and they are only an estimate. Only
+	 * meaningful once the component has been solved.
+	 */
+	public boolean exact() {
+		return m_exact;
+	}
+
+	/**
+	 * Returns the number of batches of samples the counts were estimated
+	 * from, or 0 if the component wasn't sampled. Batches which found no
+	 * layouts at all are left out.
+	 */
+	public int batches() {
+		return (m_batches == null) ? 0 : m_batches.length;
+	}
+
+	/**
+	 * Returns a solved copy of the component whose counts come from the
+	 * given batch of samples alone. How much the batches differ shows how
+	 * far the estimate could be off.
+	 */
+	public Component batch(int b) {
+		return m_batches[b];
+	}
+
+	/**
+	 * Returns the most mines the component was allowed to use when it was
+	 * solved. Layouts with more mines than this were not counted.
+	 */
+	public int maxMines() {
+		return m_maxmines;
+	}
+
+	/**
+	 * Returns a hash of the component's squares and constraints. Components
+	 * which are the same (see sameAs) have the same hash.
+	 */
+	public long hash() {
+		long h = size();
+		for (int i = 0; i < size(); i++) {
+			h = h * 31 + m_rows[i];
+			h = h * 31 + m_cols[i];
+		}
+		for (int j = 0; j < m_constraints.length; j++) {
+			h = h * 31 + m_values[j];
+			for (int i : m_constraints[j]) {
+				h = h * 31 + i;
+			}
+			h = h * 31 - 1;
+		}
+		return h;
+	}
+
+	/**
+	 * Returns true if the other component has the same squares, in the same
+	 * order, under the same constraints. Two such components always have the
+	 * same layouts.
+	 */
+	public boolean sameAs(Component other) {
+		return Arrays.equals(m_rows, other.m_rows) &&
+			Arrays.equals(m_cols, other.m_cols) &&
+			Arrays.equals(m_values, other.m_values) &&
+			Arrays.deepEquals(m_constraints, other.m_constraints);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Gives the solve functions a deadline, in System.nanoTime() terms. If
+	 * the layouts haven't all been enumerated by then, the enumeration stops
+	 * and the counts are estimated instead (see exact()).
+	 */
+	public void setDeadline(long deadline) {
+		m_deadline = deadline;
+		m_hasdeadline = true;
+	}
+
+	/**
+	 * Enumerates every mine layout of the component which satisfies all of
+	 * its constraints, tallying them by the number of mines they use, on the
+	 * current thread alone.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 */
+	public void solve(int maxmines) {
+		solve(maxmines, null, null);
+	}
+
+	/**
+	 * Enumerates every mine layout of the component which satisfies all of
+	 * its constraints, tallying them by the number of mines they use.
+	 *
+	 * The squares are decided one at a time in a depth-first search. After
+	 * each decision, every constraint touching the square is checked to see
+	 * that it can still be met (it hasn't got too many mines, and it has
+	 * enough undecided squares left for the mines it still needs). If not,
+	 * the whole subtree below that decision is skipped.
+	 *
+	 * If a pool is given and the component is big enough, the first few
+	 * decisions are shared out, and each subtree below them is searched as a
+	 * separate task in the pool.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 * @param pool The pool to share the work out in, or null to do it all on
+	 * 			   the current thread
+	 * @param cancel If this is (or becomes) true, the enumeration is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 */
+	public void solve(int maxmines, ForkJoinPool pool, AtomicBoolean cancel) {
+		int numvars = size();
+
+		startTally();
+		m_maxmines = maxmines;
+		m_cancel = cancel;
+
+		int[] need = new int[m_constraints.length];
+		int[] free = new int[m_constraints.length];
+		if (startSearch(need, free)) {
+			m_order = searchOrder();
+			m_splitdepth = Math.min(splitDepth(pool), numvars);
+			try {
+				run(new Search(need, free, new boolean[numvars], 0, 0), pool);
+			}
+			catch (CancellationException e) {
+				outOfTime(e);
+				return;
+			}
+		}
+		finishTally();
+	}
+
+	/**
+	 * Estimates the counts by sampling mine layouts at random, for
+	 * components far too big for every layout to be enumerated.
+	 *
+	 * Each sample goes down the same search tree as solve(), but follows a
+	 * single branch of it, chosen at random, rather than every branch. Each
+	 * square which could go either way doubles the sample's weight, and a
+	 * square which is forced leaves it alone, so the weight is the number of
+	 * layouts the sample stands in for. On average, the weights come to the
+	 * true counts. A sample which runs into a dead end counts for nothing.
+	 *
+	 * The samples are taken in s_numbatches batches, each with a stream of
+	 * random numbers split off from the given one, and each a separate task
+	 * in the pool. The results only depend on the random numbers, not on the
+	 * number of threads. If the component has a deadline, every batch stops
+	 * when it is reached, and the samples taken so far are used.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 * @param pool The pool to share the batches out in, or null to take them
+	 * 			   all on the current thread
+	 * @param cancel If this is (or becomes) true, the sampling is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 * @param samples The number of samples to take, between all the batches
+	 * @param random Where the random numbers come from
+	 */
+	public void sample(int maxmines, ForkJoinPool pool, AtomicBoolean cancel, long samples,
+			SplittableRandom random) {
+		int numvars = size();
+		m_maxmines = maxmines;
+		m_cancel = cancel;
+
+		int[] need = new int[m_constraints.length];
+		int[] free = new int[m_constraints.length];
+		boolean ok = startSearch(need, free);
+		m_order = searchOrder();
+
+		final Batch[] batches = new Batch[s_numbatches];
+		for (int b = 0; b < s_numbatches; b++) {
+			long share = samples / s_numbatches + ((b < samples % s_numbatches) ? 1 : 0);
+			batches[b] = new Batch(need.clone(), free.clone(), Math.max(share, 1), random.split());
+		}
+		if (ok && pool == null) {
+			for (Batch batch : batches) {
+				batch.invoke();
+			}
+		}
+		else if (ok) {
+			run(new RecursiveAction() {
+				protected void compute() {
+					invokeAll(batches);
+				}
+			}, pool);
+		}
+
+		// Put every batch on the same scale, and average the weights over
+		// the samples taken, first over all the batches together, and then
+		// over each one by itself.
+		int scale = Integer.MIN_VALUE;
+		long taken = 0;
+		for (Batch batch : batches) {
+			scale = Math.max(scale, batch.m_scale);
+			taken += batch.m_taken;
+		}
+		m_counts = new double[numvars + 1];
+		m_cellcounts = new double[numvars + 1][];
+		ArrayList<Component> found = new ArrayList<Component>();
+		for (Batch batch : batches) {
+			if (!batch.m_found) {
+				continue;
+			}
+			double shift = Math.scalb(1.0, batch.m_scale - scale);
+			Component copy = new Component(m_rows, m_cols, m_constraints, m_values);
+			copy.m_counts = new double[numvars + 1];
+			copy.m_cellcounts = new double[numvars + 1][];
+			copy.m_maxmines = maxmines;
+			for (int k = 0; k <= numvars; k++) {
+				m_counts[k] += batch.m_counts[k] * shift / taken;
+				copy.m_counts[k] = batch.m_counts[k] * shift / batch.m_taken;
+				if (batch.m_cells[k] == null) {
+					continue;
+				}
+				if (m_cellcounts[k] == null) {
+					m_cellcounts[k] = new double[numvars];
+				}
+				copy.m_cellcounts[k] = new double[numvars];
+				for (int i = 0; i < numvars; i++) {
+					m_cellcounts[k][i] += batch.m_cells[k][i] * shift / taken;
+					copy.m_cellcounts[k][i] = batch.m_cells[k][i] * shift / batch.m_taken;
+				}
+			}
+			found.add(copy);
+		}
+		m_batches = found.toArray(new Component[0]);
+		m_exact = false;
+		m_cancel = null;
+		m_cellcons = null;
+		m_order = null;
+	}
+
+	/**
+	 * Counts the mine layouts of the component exactly, in time which grows
+	 * with its length rather than exponentially with its size, as long as it
+	 * is thin (like the band of squares along an opened edge). Returns false,
+	 * without solving anything, if it is too wide for this.
+	 *
+	 * The squares are swept through one at a time, in an order which keeps
+	 * squares next to each other close together. At any point, only the
+	 * constraints which have some of their squares swept and some not
+	 * ('open' constraints) matter for the rest of the sweep, and only
+	 * through the number of mines already in them. So rather than every
+	 * partial layout, only the number of partial layouts (by their number of
+	 * mines) for each state of the open constraints is carried along.
+	 *
+	 * That is done forwards, and then backwards, and the number of layouts
+	 * with a mine in a given square is found by joining the partial layouts
+	 * before it with those after it. Each step's numbers are scaled down to
+	 * stop them overflowing, and the scales kept as logarithms.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 * @param cancel If this is (or becomes) true, the counting is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 */
+	public boolean solveByTransfer(int maxmines, AtomicBoolean cancel) {
+		int numvars = size();
+		int numcons = m_constraints.length;
+
+		int[] need = new int[numcons];
+		int[] free = new int[numcons];
+		boolean ok = startSearch(need, free);
+		m_order = sweepOrder();
+		int[] pos = new int[numvars];
+		for (int t = 0; t < numvars; t++) {
+			pos[m_order[t]] = t;
+		}
+
+		// Work out when each constraint opens and closes, and give it a slot
+		// in the state for as long as it is open. rest[t][n] is the number
+		// of squares the n'th constraint of square m_order[t] has left after
+		// step t.
+		int[] first = new int[numcons];
+		int[] last = new int[numcons];
+		Arrays.fill(first, numvars);
+		Arrays.fill(last, -1);
+		for (int j = 0; j < numcons; j++) {
+			for (int i : m_constraints[j]) {
+				first[j] = Math.min(first[j], pos[i]);
+				last[j] = Math.max(last[j], pos[i]);
+			}
+		}
+		int[] slot = new int[numcons];
+		boolean[] taken = new boolean[s_maxslots];
+		int[][] rest = new int[numvars][];
+		int[] remaining = free.clone();
+		for (int t = 0; t < numvars; t++) {
+			int[] cons = m_cellcons[m_order[t]];
+			rest[t] = new int[cons.length];
+			for (int n = 0; n < cons.length; n++) {
+				int j = cons[n];
+				if (first[j] == t) {
+					slot[j] = -1;
+					for (int k = 0; k < s_maxslots && slot[j] == -1; k++) {
+						if (!taken[k]) {
+							slot[j] = k;
+							taken[k] = true;
+						}
+					}
+					if (slot[j] == -1) {
+						m_cellcons = null;
+						m_order = null;
+						return false;
+					}
+				}
+				remaining[j]--;
+				rest[t][n] = remaining[j];
+			}
+			for (int j : cons) {
+				if (last[j] == t) {
+					taken[slot[j]] = false;
+				}
+			}
+		}
+
+		// The component is narrow enough to sweep, and only now takes on the
+		// limit and the cancel flag, so that a component turned away above
+		// keeps neither.
+		m_maxmines = maxmines;
+		m_cancel = cancel;
+
+		// forward.get(t) maps each state before step t to the number of
+		// partial layouts of the first t squares, by their number of mines,
+		// all times exp(-logforward[t]).
+		ArrayList<HashMap<Long, double[]>> forward = new ArrayList<HashMap<Long, double[]>>();
+		double[] logforward = new double[numvars + 1];
+		HashMap<Long, double[]> states = new HashMap<Long, double[]>();
+		if (ok) {
+			states.put(0L, new double[] {1});
+		}
+		forward.add(states);
+		try {
+			for (int t = 0; t < numvars; t++) {
+				checkCancelled();
+				HashMap<Long, double[]> next = new HashMap<Long, double[]>();
+				for (Map.Entry<Long, double[]> entry : states.entrySet()) {
+					double[] counts = entry.getValue();
+					for (int v = 0; v <= 1; v++) {
+						long key = step(entry.getKey(), t, v, slot, last, rest);
+						if (key == -1) {
+							continue;
+						}
+						double[] sum = next.get(key);
+						if (sum == null) {
+							sum = new double[Math.min(t + 1, Math.max(maxmines, 0)) + 1];
+							next.put(key, sum);
+						}
+						for (int k = 0; k < counts.length && k + v < sum.length; k++) {
+							sum[k + v] += counts[k];
+						}
+					}
+				}
+				if (next.size() > s_maxstates) {
+					m_cellcons = null;
+					m_order = null;
+					m_cancel = null;
+					return false;
+				}
+				logforward[t + 1] = logforward[t] + rescale(next);
+				forward.add(next);
+				states = next;
+			}
+
+			// Every constraint is closed at the end, so the only state left
+			// is the empty one, and it holds the counts. Then go backwards,
+			// keeping only the states the forward sweep reached, and join
+			// the two sweeps at each square.
+			m_counts = new double[numvars + 1];
+			m_cellcounts = new double[numvars + 1][numvars];
+			double[] total = states.get(0L);
+			if (total != null) {
+				System.arraycopy(total, 0, m_counts, 0, total.length);
+			}
+			HashMap<Long, double[]> after = new HashMap<Long, double[]>();
+			after.put(0L, new double[] {1});
+			double logafter = 0;
+			for (int t = numvars - 1; t >= 0 && total != null; t--) {
+				checkCancelled();
+				HashMap<Long, double[]> before = new HashMap<Long, double[]>();
+				double[] mines = new double[numvars + 1];
+				for (Map.Entry<Long, double[]> entry : forward.get(t).entrySet()) {
+					double[] sum = null;
+					for (int v = 0; v <= 1; v++) {
+						long key = step(entry.getKey(), t, v, slot, last, rest);
+						double[] counts = (key == -1) ? null : after.get(key);
+						if (counts == null) {
+							continue;
+						}
+						if (sum == null) {
+							sum = new double[Math.min(numvars - t, Math.max(maxmines, 0)) + 1];
+						}
+						for (int k = 0; k < counts.length && k + v < sum.length; k++) {
+							sum[k + v] += counts[k];
+						}
+						if (v == 1) {
+							join(entry.getValue(), counts, mines, maxmines);
+						}
+					}
+					if (sum != null) {
+						before.put(entry.getKey(), sum);
+					}
+				}
+
+				// The joined counts are scaled by the forward scale before
+				// step t and the backward scale after it, rather than the
+				// scale of the totals.
+				double scale = Math.exp(logforward[t] + logafter - logforward[numvars]);
+				int i = m_order[t];
+				for (int k = 1; k <= numvars; k++) {
+					m_cellcounts[k][i] = mines[k] * scale;
+				}
+				logafter += rescale(before);
+				after = before;
+			}
+		}
+		catch (CancellationException e) {
+			m_cellcons = null;
+			outOfTime(e);
+			return true;
+		}
+
+		m_exact = true;
+		m_cancel = null;
+		m_cellcons = null;
+		m_order = null;
+		return true;
+	}
+
+	/**
+	 * Enumerates every mine layout of the component in the same way as
+	 * solve(), but by row-reducing the constraints into a linear system, so
+	 * that only the free ('u') variables need to be guessed. Every other
+	 * variable follows from those.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 */
+	public void solveByElimination(int maxmines) {
+		solveByElimination(maxmines, null, null, null, null);
+	}
+
+	/**
+	 * Enumerates every mine layout of the component in the same way as
+	 * solveByElimination(int). If a pool is given and there are enough
+	 * u-variables, the guesses are shared out by fixing the first few
+	 * u-variables, and walking the rest of each guess as a separate task in
+	 * the pool.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 * @param pool The pool to share the work out in, or null to do it all on
+	 * 			   the current thread
+	 * @param cancel If this is (or becomes) true, the enumeration is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 */
+	public void solveByElimination(int maxmines, ForkJoinPool pool, AtomicBoolean cancel) {
+		solveByElimination(maxmines, pool, cancel, null, null);
+	}
+
+	/**
+	 * Enumerates every mine layout of the component in the same way as
+	 * solveByElimination(int, ForkJoinPool, AtomicBoolean), but starts from
+	 * the reduced systems of earlier components where it can, rather than
+	 * reducing every equation from nothing.
+	 *
+	 * An earlier component can be used if it came from an earlier version
+	 * of the same board, and every one of its squares is either in this
+	 * component or has since been revealed, flagged or decided. Its system is
+	 * brought in as it is, the squares which have left are fixed to 0
+	 * (revealed or safe) or 1 (flagged or a mine), and only the equations
+	 * which are new are folded in.
+	 *
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 * @param pool The pool to share the work out in, or null to do it all on
+	 * 			   the current thread
+	 * @param cancel If this is (or becomes) true, the enumeration is given up
+	 * 				 on, and a CancellationException thrown. May be null.
+	 * @param known What is known about the board the component comes from.
+	 * 				May be null if there are no earlier components.
+	 * @param earlier Components solved by elimination on earlier versions of
+	 * 				  the board, whose squares do not overlap. Those which
+	 * 				  can't be used are skipped. May be null.
+	 */
+	public void solveByElimination(final int maxmines, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, List<Component> earlier) {
+		int numvars = size();
+		int numequations = m_constraints.length;
+
+		startTally();
+		m_maxmines = maxmines;
+		m_cancel = cancel;
+
+		// Build the reduced system of equations, one per constraint, either
+		// by bringing earlier systems up to date, or from nothing.
+		LinearSystem s = null;
+		if (known != null && earlier != null && !earlier.isEmpty()) {
+			s = reuse(known, earlier);
+		}
+		if (s == null) {
+			s = new LinearSystem(numvars, numequations);
+			for (int j = 0; j < numequations; j++) {
+				int[] cols = m_constraints[j].clone();
+				Arrays.sort(cols);
+				long[] coefs = new long[cols.length];
+				Arrays.fill(coefs, 1);
+				s.add_equation(cols, coefs, m_values[j]);
+			}
+			s.reduce();
+		}
+		m_system = s;
+
+		// Compile the system so that guesses for the u-variables (the
+		// unknowns which are not pivots) can be checked quickly.
+		final LinearSystem.Plan plan = s.compile();
+
+		// Squares which have been fixed since an earlier system was made are
+		// still unknowns of the system. Their mines (flags) belong to the
+		// player, not to this component, so they are taken off the count.
+		int[] none = new int[plan.free()];
+		int flagged = 0;
+		for (int c = numvars; c < plan.unknowns(); c++) {
+			flagged += Math.max(plan.valueOf(c, none), 0);
+		}
+		final int offset = flagged;
+
+		// Share the guesses out by the values of the first few u-variables.
+		// Each prefix gets a task of its own.
+		final int fixed = (plan.free() < s_minsplitsize) ? 0 :
+			Math.min(splitDepth(pool), plan.free());
+		try {
+			run(new RecursiveAction() {
+				protected void compute() {
+					if (fixed == 0) {
+						walk(plan, 0, 0, offset, maxmines);
+						return;
+					}
+					List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+					for (long prefix = 0; prefix < (1L << fixed); prefix++) {
+						final long p = prefix;
+						tasks.add(new RecursiveAction() {
+							protected void compute() {
+								walk(plan, fixed, p, offset, maxmines);
+							}
+						});
+					}
+					invokeAll(tasks);
+				}
+			}, pool);
+		}
+		catch (CancellationException e) {
+			outOfTime(e);
+			return;
+		}
+		finishTally();
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//							PRIVATE FUNCTIONS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Tallies of mine layouts, in the same form as m_counts and m_cellcounts.
+	 * These are kept as whole numbers so that no amount of layouts can lose
+	 * count.
+	 */
+	private static class Tally {
+		// m_counts[k] is the number of layouts found with k mines, and
+		// m_cells[k][i] the number of those in which square i is a mine.
+		long[] m_counts;
+		long[][] m_cells;
+
+		/**
+		 * Starts an empty tally for a component of n squares.
+		 */
+		Tally(int n) {
+			m_counts = new long[n + 1];
+			m_cells = new long[n + 1][n];
+		}
+	}
+
+	/**
+	 * One piece of the depth-first search: decides square m_order[depth] and
+	 * everything after it, given a partial layout of the squares before it.
+	 * Each piece has its own copy of the search state, so that pieces can be
+	 * searched on different threads at once.
+	 */
+	private class Search extends RecursiveAction {
+		// Pieces of the search are never serialised, but RecursiveAction is
+		// Serializable.
+		private static final long serialVersionUID = 1L;
+
+		// m_need[j] is the number of mines constraint j still needs, and
+		// m_free[j] the number of its squares that have not been decided yet.
+		// m_layout holds the current (partial) layout.
+		private int[] m_need;
+		private int[] m_free;
+		private boolean[] m_layout;
+
+		// Where this piece of the search starts from: the number of squares
+		// already decided, and the number of mines among them.
+		private int m_depth;
+		private int m_mines;
+
+		// The tally that layouts are counted in, and the pieces this one has
+		// been split into (null unless it is being split).
+		private Tally m_tally;
+		private List<Search> m_forks;
+
+		// The number of decisions made so far, used to check for
+		// cancellation every so often.
+		private int m_steps;
+
+		/**
+		 * Creates a piece of the search which owns the given state.
+		 */
+		Search(int[] need, int[] free, boolean[] layout, int depth, int mines) {
+			m_need = need;
+			m_free = free;
+			m_layout = layout;
+			m_depth = depth;
+			m_mines = mines;
+		}
+
+		/**
+		 * Searches this piece. Pieces which start above the split depth make
+		 * their next decision, and hand each way of making it to a new piece.
+		 */
+		protected void compute() {
+			m_tally = tally();
+			if (m_depth < m_splitdepth) {
+				m_forks = new ArrayList<Search>(2);
+				search(m_depth, m_mines);
+				invokeAll(m_forks);
+			}
+			else {
+				search(m_depth, m_mines);
+			}
+		}
+
+		/**
+		 * Decides square m_order[depth] and everything after it, given that
+		 * the squares before it hold 'mines' mines between them.
+		 */
+		private void search(int depth, int mines) {
+
+			// Every so often, check that we haven't been asked to stop.
+			m_steps++;
+			if ((m_steps & s_checkmask) == 0) {
+				checkCancelled();
+			}
+
+			// Every square has been decided, and every constraint is met
+			// (each has no undecided squares left, and so needs no more
+			// mines).
+			if (depth == m_order.length) {
+				m_tally.m_counts[mines]++;
+				for (int i = 0; i < m_layout.length; i++) {
+					if (m_layout[i]) {
+						m_tally.m_cells[mines][i]++;
+					}
+				}
+				return;
+			}
+
+			int i = m_order[depth];
+			int[] cons = m_cellcons[i];
+
+			// Try the square without a mine. Every constraint it is in must
+			// still have room for the mines it needs.
+			boolean ok = true;
+			for (int j : cons) {
+				m_free[j]--;
+				if (m_need[j] > m_free[j]) {
+					ok = false;
+				}
+			}
+			if (ok) {
+				descend(depth + 1, mines);
+			}
+
+			// Then try it with a mine. None of its constraints may go over.
+			ok = mines < m_maxmines;
+			for (int j : cons) {
+				m_need[j]--;
+				if (m_need[j] < 0) {
+					ok = false;
+				}
+			}
+			if (ok) {
+				m_layout[i] = true;
+				descend(depth + 1, mines + 1);
+				m_layout[i] = false;
+			}
+
+			// Undo the decision.
+			for (int j : cons) {
+				m_need[j]++;
+				m_free[j]++;
+			}
+		}
+
+		/**
+		 * Carries on the search below a decision, either straight away or,
+		 * if this piece is being split, as a new piece with a copy of the
+		 * current state.
+		 */
+		private void descend(int depth, int mines) {
+			if (m_forks != null) {
+				m_forks.add(new Search(m_need.clone(), m_free.clone(),
+						m_layout.clone(), depth, mines));
+			}
+			else {
+				search(depth, mines);
+			}
+		}
+	}
+
+	/**
+	 * One batch of samples (see sample()). Each batch has its own copy of
+	 * the search state, its own random numbers, and its own tallies.
+	 */
+	private class Batch extends RecursiveAction {
+		// Batches are never serialised either.
+		private static final long serialVersionUID = 1L;
+
+		// m_need[j] is the number of mines constraint j still needs, and
+		// m_free[j] the number of its squares that have not been decided yet.
+		// m_layout holds the current (partial) layout.
+		private int[] m_need;
+		private int[] m_free;
+		private boolean[] m_layout;
+
+		// The number of samples to take, and where their random choices come
+		// from.
+		private long m_samples;
+		private SplittableRandom m_random;
+
+		// The tallies of the samples taken, in the same form as m_counts and
+		// m_cellcounts, but all multiplied by 2^-m_scale so that they don't
+		// overflow. Rows of m_cells are only made for mine counts which turn
+		// up. m_taken is the number of samples taken, and m_found is set once
+		// one of them has found a layout.
+		private double[] m_counts;
+		private double[][] m_cells;
+		private int m_scale;
+		private long m_taken;
+		private boolean m_found;
+
+		/**
+		 * Creates a batch which owns the given search state.
+		 */
+		Batch(int[] need, int[] free, long samples, SplittableRandom random) {
+			m_need = need;
+			m_free = free;
+			m_layout = new boolean[size()];
+			m_samples = samples;
+			m_random = random;
+			m_counts = new double[size() + 1];
+			m_cells = new double[size() + 1][];
+			m_scale = Integer.MIN_VALUE;
+		}
+
+		/**
+		 * Takes the samples. At least one is always taken, even if the
+		 * deadline has already gone by.
+		 */
+		protected void compute() {
+			while (m_taken < m_samples) {
+				if (m_cancel != null && m_cancel.get()) {
+					throw new CancellationException("component sampling cancelled");
+				}
+				if (m_taken > 0 && timeUp()) {
+					break;
+				}
+				draw();
+				m_taken++;
+			}
+		}
+
+		/**
+		 * Takes a single sample, and tallies it if it finds a layout.
+		 */
+		private void draw() {
+			int depth = 0;
+			int mines = 0;
+			int doubled = 0;
+			for (; depth < m_order.length; depth++) {
+				int i = m_order[depth];
+				boolean safe = fits(i, 0);
+				boolean mine = mines < m_maxmines && fits(i, 1);
+				if (!safe && !mine) {
+					break;
+				}
+				if (safe && mine) {
+					doubled++;
+					mine = m_random.nextBoolean();
+				}
+				m_layout[i] = mine;
+				if (mine) {
+					mines++;
+				}
+				for (int j : m_cellcons[i]) {
+					m_free[j]--;
+					m_need[j] -= mine ? 1 : 0;
+				}
+			}
+			if (depth == m_order.length) {
+				tally(doubled, mines);
+			}
+
+			// Undo every decision.
+			for (int d = 0; d < depth; d++) {
+				int i = m_order[d];
+				for (int j : m_cellcons[i]) {
+					m_free[j]++;
+					m_need[j] += m_layout[i] ? 1 : 0;
+				}
+				m_layout[i] = false;
+			}
+		}
+
+		/**
+		 * Returns true if square i can be given the value (0 or 1) without
+		 * breaking any of its constraints.
+		 */
+		private boolean fits(int i, int value) {
+			for (int j : m_cellcons[i]) {
+				int need = m_need[j] - value;
+				if (need < 0 || need > m_free[j] - 1) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the current layout, which uses 'mines' mines and has weight
+		 * 2^doubled, to the tallies.
+		 */
+		private void tally(int doubled, int mines) {
+			// A heavier sample than any before moves the tallies onto its
+			// scale.
+			if (m_found && doubled > m_scale) {
+				for (int k = 0; k < m_counts.length; k++) {
+					m_counts[k] = Math.scalb(m_counts[k], m_scale - doubled);
+					if (m_cells[k] != null) {
+						for (int i = 0; i < m_cells[k].length; i++) {
+							m_cells[k][i] = Math.scalb(m_cells[k][i], m_scale - doubled);
+						}
+					}
+				}
+			}
+			m_scale = Math.max(m_scale, doubled);
+			m_found = true;
+
+			double weight = Math.scalb(1.0, doubled - m_scale);
+			m_counts[mines] += weight;
+			if (m_cells[mines] == null) {
+				m_cells[mines] = new double[m_layout.length];
+			}
+			for (int i = 0; i < m_layout.length; i++) {
+				if (m_layout[i]) {
+					m_cells[mines][i] += weight;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks every guess for the u-variables of a plan which starts with the
+	 * given prefix, and counts the layouts they lead to. 'offset' mines are
+	 * taken off each layout's count, for squares outside the component.
+	 */
+	private void walk(LinearSystem.Plan plan, int fixed, long prefix, int offset, int maxmines) {
+		int numvars = size();
+		Tally tally = tally();
+
+		// Go through every possible mine orientation for our u-variables, in
+		// Gray code order, so that each one only changes a single u-variable
+		// from the one before.
+		LinearSystem.Walk walk = plan.walk(fixed, prefix);
+		int[] values = new int[plan.unknowns()];
+		int steps = 0;
+		while (walk.next()) {
+			// Every so often, check that we haven't been asked to stop.
+			steps++;
+			if ((steps & s_checkmask) == 0) {
+				checkCancelled();
+			}
+
+			// If the values for our u-variables generate a plausible layout,
+			// count it along with the number of mines it uses.
+			int k = walk.mines(values);
+			if (k != -1) {
+				k -= offset;
+			}
+			if (k != -1 && k <= maxmines) {
+				tally.m_counts[k]++;
+				for (int v = 0; v < numvars; v++) {
+					if (values[v] == 1) {
+						tally.m_cells[k][v]++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds this component's reduced system from the reduced systems of
+	 * earlier components (see solveByElimination). Returns null if none of
+	 * them can be used.
+	 */
+	private LinearSystem reuse(Frontier known, List<Component> earlier) {
+		int numvars = size();
+
+		// Where each of our squares is, by its place on the board.
+		HashMap<Integer, Integer> local = new HashMap<Integer, Integer>();
+		for (int i = 0; i < numvars; i++) {
+			local.put(cell(m_rows[i], m_cols[i]), i);
+		}
+
+		// Our constraints which no earlier system covers yet.
+		HashMap<String, Integer> unmatched = new HashMap<String, Integer>();
+		for (int j = 0; j < m_constraints.length; j++) {
+			String key = constraintKey(m_constraints[j], m_values[j]);
+			Integer count = unmatched.get(key);
+			unmatched.put(key, (count == null) ? 1 : count + 1);
+		}
+
+		// Go through the earlier components, and work out how the columns of
+		// their systems fit into ours. Squares they have which we don't get
+		// columns of their own after ours, and are fixed to their values.
+		ArrayList<Component> used = new ArrayList<Component>();
+		ArrayList<int[]> maps = new ArrayList<int[]>();
+		ArrayList<Integer> extravalues = new ArrayList<Integer>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for (Component e : earlier) {
+			LinearSystem es = e.m_system;
+			if (es == null) {
+				continue;
+			}
+			int[] map = new int[es.cols() - 1];
+			Arrays.fill(map, -1);
+			ArrayList<Integer> values = new ArrayList<Integer>();
+			boolean ok = true;
+			for (int i = 0; i < e.size() && ok; i++) {
+				int cell = cell(e.m_rows[i], e.m_cols[i]);
+				Integer mine = local.get(cell);
+				int fixed = known.value(e.m_rows[i], e.m_cols[i]);
+				if (seen.contains(cell)) {
+					ok = false;
+				}
+				else if (mine != null) {
+					map[i] = mine;
+				}
+				else if (fixed != -1) {
+					map[i] = numvars + extravalues.size() + values.size();
+					values.add(fixed);
+				}
+				else {
+					ok = false;
+				}
+			}
+
+			// Every one of its constraints, with the fixed squares taken
+			// out, must be one of ours.
+			HashMap<String, Integer> left = new HashMap<String, Integer>(unmatched);
+			for (int j = 0; j < e.m_constraints.length && ok; j++) {
+				int[] mapped = new int[e.m_constraints[j].length];
+				int n = 0;
+				int value = e.m_values[j];
+				for (int i : e.m_constraints[j]) {
+					if (map[i] < numvars) {
+						mapped[n] = map[i];
+						n++;
+					}
+					else {
+						value -= values.get(map[i] - numvars - extravalues.size());
+					}
+				}
+				if (n == 0) {
+					ok = (value == 0);
+					continue;
+				}
+				String key = constraintKey(Arrays.copyOf(mapped, n), value);
+				Integer count = left.get(key);
+				if (count == null || count == 0) {
+					ok = false;
+				}
+				else {
+					left.put(key, count - 1);
+				}
+			}
+			if (!ok) {
+				continue;
+			}
+
+			unmatched = left;
+			extravalues.addAll(values);
+			for (int i = 0; i < e.size(); i++) {
+				seen.add(cell(e.m_rows[i], e.m_cols[i]));
+			}
+			used.add(e);
+			maps.add(map);
+		}
+		if (used.isEmpty()) {
+			return null;
+		}
+
+		// Bring the earlier systems in, fix the squares which have left, and
+		// fold in whichever of our constraints are new.
+		LinearSystem s = new LinearSystem(numvars + extravalues.size(), 1);
+		s.reduce();
+		for (int u = 0; u < used.size(); u++) {
+			if (!s.include(used.get(u).m_system, maps.get(u))) {
+				return null;
+			}
+		}
+		for (int x = 0; x < extravalues.size(); x++) {
+			s.fixUnknown(numvars + x, extravalues.get(x));
+		}
+		for (int j = 0; j < m_constraints.length; j++) {
+			String key = constraintKey(m_constraints[j], m_values[j]);
+			Integer count = unmatched.get(key);
+			if (count != null && count > 0) {
+				unmatched.put(key, count - 1);
+				int[] cols = m_constraints[j].clone();
+				Arrays.sort(cols);
+				long[] coefs = new long[cols.length];
+				Arrays.fill(coefs, 1);
+				s.foldEquation(cols, coefs, m_values[j]);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns a key which is the same for two constraints exactly when they
+	 * cover the same squares and need the same number of mines.
+	 */
+	private static String constraintKey(int[] squares, int value) {
+		int[] sorted = squares.clone();
+		Arrays.sort(sorted);
+		return Arrays.toString(sorted) + "=" + value;
+	}
+
+	/**
+	 * Returns a single number standing for board square (r,c).
+	 */
+	private static int cell(int r, int c) {
+		return (r << 16) | c;
+	}
+
+	/**
+	 * Returns the number of levels the work should be split into before it
+	 * is shared out in the given pool: enough for every thread to have a few
+	 * pieces to work on, so that no thread sits idle while the others finish
+	 * off. Returns 0 if there is no pool, or the component is too small to
+	 * be worth splitting.
+	 */
+	private int splitDepth(ForkJoinPool pool) {
+		if (pool == null || pool.getParallelism() < 2 || size() < s_minsplitsize) {
+			return 0;
+		}
+		int levels = 32 - Integer.numberOfLeadingZeros(pool.getParallelism() - 1);
+		return levels + 3;
+	}
+
+	/**
+	 * Throws a CancellationException if the enumeration has been cancelled,
+	 * or has run out of time.
+	 */
+	private void checkCancelled() {
+		if (m_cancel != null && m_cancel.get()) {
+			throw new CancellationException("component solve cancelled");
+		}
+		if (timeUp()) {
+			throw new CancellationException("component solve out of time");
+		}
+	}
+
+	/**
+	 * Returns true if the component has a deadline, and it has gone by.
+	 */
+	private boolean timeUp() {
+		return m_hasdeadline && System.nanoTime() - m_deadline >= 0;
+	}
+
+	/**
+	 * Called when the enumeration stops early. If it was cancelled, the
+	 * exception is passed on. If it ran out of time, the counts are
+	 * estimated instead.
+	 */
+	private void outOfTime(CancellationException e) {
+		if (!m_hasdeadline || (m_cancel != null && m_cancel.get())) {
+			throw e;
+		}
+		estimate();
+	}
+
+	/**
+	 * Fills in the counts with an estimate, for a component which ran out
+	 * of time.
+	 *
+	 * First each square is given a chance of being a mine. Every square
+	 * starts at one half, and then the chances of each constraint's squares
+	 * are scaled, over and over, so that they add up to its value. The
+	 * squares are then taken to be mines independently of each other with
+	 * those chances, which gives how likely each number of mines is. Lastly,
+	 * that favours layouts whose mines are on likely squares, whereas every
+	 * layout should count once, so the likelihood of k mines is divided by
+	 * the average odds of a square k times to turn it into a count.
+	 */
+	private void estimate() {
+		int numvars = size();
+		double[] p = new double[numvars];
+		Arrays.fill(p, 0.5);
+		for (int sweep = 0; sweep < s_sweeps; sweep++) {
+			for (int j = 0; j < m_constraints.length; j++) {
+				double sum = 0;
+				for (int i : m_constraints[j]) {
+					sum += p[i];
+				}
+				for (int i : m_constraints[j]) {
+					double scaled = p[i] * m_values[j] / sum;
+					p[i] = Math.min(Math.max(scaled, s_minchance), 1 - s_minchance);
+				}
+			}
+		}
+
+		// dist[k] is the chance of exactly k mines, and logodds the average
+		// of log(p / (1 - p)).
+		double[] dist = new double[numvars + 1];
+		dist[0] = 1;
+		double logodds = 0;
+		double expected = 0;
+		for (int i = 0; i < numvars; i++) {
+			for (int k = i + 1; k > 0; k--) {
+				dist[k] = dist[k] * (1 - p[i]) + dist[k - 1] * p[i];
+			}
+			dist[0] *= 1 - p[i];
+			logodds += Math.log(p[i] / (1 - p[i]));
+			expected += p[i];
+		}
+		logodds /= Math.max(numvars, 1);
+
+		double[] logcount = new double[numvars + 1];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k <= numvars; k++) {
+			logcount[k] = (k > m_maxmines || dist[k] <= 0) ? Double.NEGATIVE_INFINITY :
+				Math.log(dist[k]) - k * logodds;
+			max = Math.max(max, logcount[k]);
+		}
+
+		m_counts = new double[numvars + 1];
+		m_cellcounts = new double[numvars + 1][numvars];
+		for (int k = 0; k <= numvars; k++) {
+			if (logcount[k] == Double.NEGATIVE_INFINITY) {
+				continue;
+			}
+			m_counts[k] = Math.exp(logcount[k] - max);
+			for (int i = 0; i < numvars; i++) {
+				m_cellcounts[k][i] = m_counts[k] * Math.min(k * p[i] / expected, 1);
+			}
+		}
+		m_exact = false;
+	}
+
+	/**
+	 * Gets ready for a search: works out which constraints each square
+	 * belongs to (m_cellcons), and fills in the number of mines each
+	 * constraint needs and the number of squares it has. Returns false if
+	 * some constraint is broken from the start, and so can never be met.
+	 */
+	private boolean startSearch(int[] need, int[] free) {
+		int numvars = size();
+		int[] numcons = new int[numvars];
+		for (int[] constraint : m_constraints) {
+			for (int i : constraint) {
+				numcons[i]++;
+			}
+		}
+		m_cellcons = new int[numvars][];
+		for (int i = 0; i < numvars; i++) {
+			m_cellcons[i] = new int[numcons[i]];
+			numcons[i] = 0;
+		}
+		for (int j = 0; j < m_constraints.length; j++) {
+			need[j] = m_values[j];
+			free[j] = m_constraints[j].length;
+			for (int i : m_constraints[j]) {
+				m_cellcons[i][numcons[i]] = j;
+				numcons[i]++;
+			}
+		}
+
+		boolean ok = true;
+		for (int j = 0; j < m_constraints.length; j++) {
+			if (need[j] < 0 || need[j] > free[j]) {
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * Returns the state after step t of solveByTransfer, given the state
+	 * before it and the value (0 or 1) given to square m_order[t], or -1 if
+	 * that breaks one of the square's constraints. The n'th constraint of the
+	 * square keeps the number of mines it has had so far in slot[j], until
+	 * its last square (at step last[j]) closes it. By then it must have
+	 * exactly the mines it needs.
+	 */
+	private long step(long state, int t, int value, int[] slot, int[] last, int[][] rest) {
+		int[] cons = m_cellcons[m_order[t]];
+		long mask = (1L << s_slotbits) - 1;
+		for (int n = 0; n < cons.length; n++) {
+			int j = cons[n];
+			int shift = slot[j] * s_slotbits;
+			int mines = (int) ((state >>> shift) & mask) + value;
+			int need = m_values[j] - mines;
+			if (need < 0 || need > rest[t][n]) {
+				return -1;
+			}
+			state &= ~(mask << shift);
+			if (last[j] != t) {
+				state |= ((long) mines) << shift;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Scales the counts of every state down so that the biggest is 1, and
+	 * returns the logarithm of what they were divided by.
+	 */
+	private static double rescale(HashMap<Long, double[]> states) {
+		double max = 0;
+		for (double[] counts : states.values()) {
+			for (double count : counts) {
+				max = Math.max(max, count);
+			}
+		}
+		if (max == 0) {
+			return 0;
+		}
+		for (double[] counts : states.values()) {
+			for (int k = 0; k < counts.length; k++) {
+				counts[k] /= max;
+			}
+		}
+		return Math.log(max);
+	}
+
+	/**
+	 * Adds the layouts made by joining every partial layout in 'before' with
+	 * a mine and then every partial layout in 'after' to 'mines', by their
+	 * total number of mines. Layouts with more than 'maxmines' mines are
+	 * left out, as they are from the totals.
+	 */
+	private static void join(double[] before, double[] after, double[] mines, int maxmines) {
+		int most = Math.min(maxmines, mines.length - 1);
+		for (int a = 0; a < before.length; a++) {
+			if (before[a] == 0) {
+				continue;
+			}
+			for (int b = 0; b < after.length && a + b + 1 <= most; b++) {
+				mines[a + b + 1] += before[a] * after[b];
+			}
+		}
+	}
+
+	/**
+	 * Returns the order in which solveByTransfer sweeps the squares. It is a
+	 * breadth-first order through the constraints, started from a square as
+	 * far as possible from the others (found by going breadth first from
+	 * square 0, and taking the last square reached), so that the squares
+	 * form a thin front which moves from one end of the component to the
+	 * other.
+	 */
+	private int[] sweepOrder() {
+		int[] order = breadthFirst(0);
+		return breadthFirst(order[order.length - 1]);
+	}
+
+	/**
+	 * Returns every square in breadth-first order through the constraints,
+	 * starting from the given square. (Components are always connected.)
+	 */
+	private int[] breadthFirst(int start) {
+		int numvars = size();
+		int[] order = new int[numvars];
+		boolean[] seen = new boolean[numvars];
+		int head = 0;
+		int tail = 0;
+		seen[start] = true;
+		order[tail] = start;
+		tail++;
+		while (head < tail) {
+			int i = order[head];
+			head++;
+			for (int j : m_cellcons[i]) {
+				for (int n : m_constraints[j]) {
+					if (!seen[n]) {
+						seen[n] = true;
+						order[tail] = n;
+						tail++;
+					}
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Runs a task to completion, in the given pool if there is one.
+	 */
+	private static void run(ForkJoinTask<?> task, ForkJoinPool pool) {
+		if (pool == null || ForkJoinTask.getPool() == pool) {
+			task.invoke();
+		}
+		else {
+			pool.invoke(task);
+		}
+	}
+
+	/**
+	 * Returns the order in which the squares are decided. Squares are taken
+	 * in breadth-first order through the constraints, so that each
+	 * constraint has all of its squares decided close together, and broken
+	 * constraints are noticed early.
+	 */
+	private int[] searchOrder() {
+		int numvars = size();
+		int[] order = new int[numvars];
+		boolean[] seen = new boolean[numvars];
+		int head = 0;
+		int tail = 0;
+
+		for (int start = 0; start < numvars; start++) {
+			if (seen[start]) {
+				continue;
+			}
+			seen[start] = true;
+			order[tail] = start;
+			tail++;
+
+			while (head < tail) {
+				int i = order[head];
+				head++;
+				for (int j : m_cellcons[i]) {
+					for (int n : m_constraints[j]) {
+						if (!seen[n]) {
+							seen[n] = true;
+							order[tail] = n;
+							tail++;
+						}
+					}
+				}
+			}
+		}
+
+		return order;
+	}
+
+	/**
+	 * Returns the tally belonging to the current thread.
+	 */
+	private Tally tally() {
+		return m_local.get();
+	}
+
+	/**
+	 * Clears the tallies before the layouts are enumerated.
+	 */
+	private void startTally() {
+		m_tallies = new ArrayList<Tally>();
+		m_local = new ThreadLocal<Tally>() {
+			protected Tally initialValue() {
+				Tally tally = new Tally(size());
+				synchronized (m_tallies) {
+					m_tallies.add(tally);
+				}
+				return tally;
+			}
+		};
+	}
+
+	/**
+	 * Adds the tallies of every thread together into the results once the
+	 * layouts have been enumerated.
+	 */
+	private void finishTally() {
+		long[] counts = new long[size() + 1];
+		long[][] cells = new long[size() + 1][size()];
+		synchronized (m_tallies) {
+			for (Tally tally : m_tallies) {
+				for (int k = 0; k <= size(); k++) {
+					counts[k] += tally.m_counts[k];
+					for (int i = 0; i < size(); i++) {
+						cells[k][i] += tally.m_cells[k][i];
+					}
+				}
+				// The threads may hang on to their tallies for a while, so
+				// let go of the big arrays now.
+				tally.m_counts = null;
+				tally.m_cells = null;
+			}
+		}
+
+		m_counts = new double[size() + 1];
+		m_cellcounts = new double[size() + 1][size()];
+		for (int k = 0; k <= size(); k++) {
+			m_counts[k] = counts[k];
+			for (int i = 0; i < size(); i++) {
+				m_cellcounts[k][i] = cells[k][i];
+			}
+		}
+		m_tallies = null;
+		m_local = null;
+		m_cancel = null;
+		m_cellcons = null;
+		m_order = null;
+		m_exact = true;
+	}
+}
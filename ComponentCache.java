@@ -0,0 +1,415 @@
+package probcalc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers solved components from one calculation to the next, so that only
+ * the components a move has actually touched need solving again.
+ *
+ * Revealing or flagging a square only changes the constraints close to it: a
+ * component can only change if one of its squares is within two squares of
+ * the change (the changed square, or one of the numbers next to it, is one of
+ * its neighbours). The cache listens to the board, and forgets exactly those
+ * components as soon as such a change happens. Everything else is kept, and
+ * handed back to the Calculator the next time a component with the same
+ * squares and constraints comes along.
+ *
+ * Components which were solved by elimination and then forgotten are kept
+ * for a while longer as 'earlier' components. Their reduced systems are a
+ * head start for the components which replace them (see
+ * Component.solveByElimination).
+ *
+ * The cache also keeps the Frontier of the last calculation, along with a
+ * note of every square which has changed since. The next calculation brings
+ * that frontier up to date, working out the deductions and components again
+ * only near those squares, rather than starting again from nothing. If
+ * something is missing (the frontier is in use, or it was worked out for a
+ * board the changes don't lead on from), the whole frontier is worked out
+ * again instead. The components solved last time are kept in the frontier
+ * too, so only the new ones go to the cache or an engine. Combining the
+ * components still goes over all of them, but only adds up their counts.
+ */
+public class ComponentCache implements BoardListener {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The most components the cache will hold.
+	private int m_capacity;
+
+	// The cached components, by their hash, in order from least to most
+	// recently used.
+	private LinkedHashMap<Long, Component> m_map;
+
+	// For each square (as returned by cell()), the hashes of the cached
+	// components which include it.
+	private HashMap<Integer, ArrayList<Long>> m_bycell;
+
+	// Forgotten components which were solved by elimination, by their hash,
+	// in the order they were forgotten. m_staletime holds when each was
+	// forgotten (counted in forgotten components), and m_stalebycell
+	// indexes them by square in the same way as m_bycell.
+	private LinkedHashMap<Long, Component> m_stale;
+	private HashMap<Long, Long> m_staletime;
+	private HashMap<Integer, ArrayList<Long>> m_stalebycell;
+	private long m_forgotten;
+
+	// The number of lookups which found a component, and which didn't.
+	private long m_hits;
+	private long m_misses;
+
+	// The board the last change came from. A change from any other board
+	// means a new game has started, and everything is forgotten.
+	private Board m_board;
+
+	// The frontier of the last calculation, or null if there isn't one (or
+	// a calculation is using it).
+	private Frontier m_frontier;
+
+	// The changes made to the board, oldest first: for each, the board's
+	// version and hash just after it, and the row and column of the square.
+	// Those from before m_frontier are let go.
+	private ArrayDeque<long[]> m_changes;
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Makes an empty cache which holds up to
+	 * 'capacity' components (at least one).
+	 */
+	public ComponentCache(int capacity) {
+		m_capacity = Math.max(capacity, 1);
+		m_changes = new ArrayDeque<long[]>();
+		m_bycell = new HashMap<Integer, ArrayList<Long>>();
+		m_map = new LinkedHashMap<Long, Component>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Long, Component> eldest) {
+				if (size() > m_capacity) {
+					unindex(m_bycell, eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		m_staletime = new HashMap<Long, Long>();
+		m_stalebycell = new HashMap<Integer, ArrayList<Long>>();
+		m_stale = new LinkedHashMap<Long, Component>() {
+			protected boolean removeEldestEntry(Map.Entry<Long, Component> eldest) {
+				if (size() > m_capacity) {
+					unindex(m_stalebycell, eldest.getKey(), eldest.getValue());
+					m_staletime.remove(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns a solved component which is the same as the given (unsolved)
+	 * one, and was solved allowing at least as many mines as it could ever
+	 * use here. Returns null if there isn't one in the cache.
+	 *
+	 * @param comp The component to look for
+	 * @param maxmines The most mines the component may use
+	 */
+	public synchronized Component get(Component comp, int maxmines) {
+		Component cached = m_map.get(comp.hash());
+		if (cached == null || !cached.sameAs(comp) ||
+			cached.maxMines() < Math.min(maxmines, comp.size())) {
+			m_misses++;
+			return null;
+		}
+		m_hits++;
+		return cached;
+	}
+
+	/**
+	 * Returns the forgotten components (solved by elimination) which share a
+	 * square with the given one, most recently forgotten first, leaving out
+	 * any which overlap one already picked.
+	 */
+	public synchronized List<Component> earlier(Component comp) {
+		ArrayList<Long> found = new ArrayList<Long>();
+		HashSet<Long> seen = new HashSet<Long>();
+		for (int i = 0; i < comp.size(); i++) {
+			ArrayList<Long> hashes = m_stalebycell.get(cell(comp.row(i), comp.col(i)));
+			if (hashes == null) {
+				continue;
+			}
+			for (Long hash : hashes) {
+				if (seen.add(hash)) {
+					found.add(hash);
+				}
+			}
+		}
+		Collections.sort(found, new Comparator<Long>() {
+			public int compare(Long a, Long b) {
+				return Long.compare(m_staletime.get(b), m_staletime.get(a));
+			}
+		});
+
+		ArrayList<Component> picked = new ArrayList<Component>();
+		HashSet<Integer> cells = new HashSet<Integer>();
+		for (Long hash : found) {
+			Component stale = m_stale.get(hash);
+			boolean overlaps = false;
+			for (int i = 0; i < stale.size() && !overlaps; i++) {
+				overlaps = cells.contains(cell(stale.row(i), stale.col(i)));
+			}
+			if (overlaps) {
+				continue;
+			}
+			for (int i = 0; i < stale.size(); i++) {
+				cells.add(cell(stale.row(i), stale.col(i)));
+			}
+			picked.add(stale);
+		}
+		return picked;
+	}
+
+	/**
+	 * Returns the frontier of the given board. If the cache has the frontier
+	 * of an earlier version of the board, and knows every square which has
+	 * changed since, that frontier is brought up to date and handed over.
+	 * Otherwise, a new one is worked out. Either way, the cache no longer
+	 * has it until it is given back (see keep()).
+	 */
+	public Frontier frontier(Board b) {
+		Frontier kept;
+		int[] changed = null;
+		synchronized (this) {
+			kept = m_frontier;
+			m_frontier = null;
+			if (kept != null) {
+				changed = changes(kept, b);
+			}
+		}
+		if (changed == null) {
+			return new Frontier(b);
+		}
+		kept.update(b, changed);
+		return kept;
+	}
+
+	/**
+	 * Returns the number of components in the cache.
+	 */
+	public synchronized int size() {
+		return m_map.size();
+	}
+
+	/**
+	 * Returns the number of lookups which found a component.
+	 */
+	public synchronized long hits() {
+		return m_hits;
+	}
+
+	/**
+	 * Returns the number of lookups which didn't find a component.
+	 */
+	public synchronized long misses() {
+		return m_misses;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Adds a solved component to the cache, replacing any component with the
+	 * same hash.
+	 */
+	public synchronized void put(Component comp) {
+		long hash = comp.hash();
+		Component old = m_map.remove(hash);
+		if (old != null) {
+			unindex(m_bycell, hash, old);
+		}
+		m_map.put(hash, comp);
+		index(m_bycell, hash, comp);
+	}
+
+	/**
+	 * Keeps the given frontier for the next calculation to start from,
+	 * unless the cache already has a frontier of a later version of the
+	 * board.
+	 */
+	public synchronized void keep(Frontier frontier) {
+		if (m_frontier != null && m_frontier.version() > frontier.version()) {
+			return;
+		}
+		m_frontier = frontier;
+		while (!m_changes.isEmpty() && m_changes.peekFirst()[0] < frontier.version()) {
+			m_changes.pollFirst();
+		}
+	}
+
+	/**
+	 * Forgets every component in the cache. This should be done whenever a
+	 * new game starts, as the components of the last one will hardly ever
+	 * come up again.
+	 */
+	public synchronized void clear() {
+		m_map.clear();
+		m_bycell.clear();
+		m_stale.clear();
+		m_staletime.clear();
+		m_stalebycell.clear();
+		m_frontier = null;
+		m_changes.clear();
+	}
+
+	/**
+	 * Notes down the change to square (r,c), and forgets every component
+	 * which it could have changed: those with a square within two squares
+	 * of it. Those solved by elimination are kept as earlier components.
+	 */
+	public synchronized void squareChanged(Board board, int r, int c, Square before, Square after) {
+		// The components of another board are only taking up room.
+		if (board != m_board) {
+			clear();
+			m_board = board;
+		}
+
+		// Once there have been more changes than there are squares, it is
+		// no slower to work the frontier out from nothing.
+		m_changes.addLast(new long[] {board.version(), board.hash(), r, c});
+		if (m_changes.size() > Math.max(board.rows() * board.cols(), 1)) {
+			m_changes.pollFirst();
+		}
+
+		// Nothing can be near the change if nothing is cached (as happens on
+		// the first click of a game, which may reveal a great many squares).
+		if (m_bycell.isEmpty()) {
+			return;
+		}
+		for (int dr = -2; dr <= 2; dr++) {
+			for (int dc = -2; dc <= 2; dc++) {
+				ArrayList<Long> hashes = m_bycell.get(cell(r + dr, c + dc));
+				if (hashes == null) {
+					continue;
+				}
+				// Copy the list, as removing the components changes it.
+				for (Long hash : new ArrayList<Long>(hashes)) {
+					Component comp = m_map.remove(hash);
+					if (comp != null) {
+						unindex(m_bycell, hash, comp);
+						if (comp.system() != null && !m_stale.containsKey(hash)) {
+							m_forgotten++;
+							m_staletime.put(hash, m_forgotten);
+							m_stale.put(hash, comp);
+							index(m_stalebycell, hash, comp);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//							PRIVATE FUNCTIONS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the squares (as a row and a column each) which have changed
+	 * between the board the given frontier was worked out for and the given
+	 * board, or null if they aren't all known, or the boards aren't versions
+	 * of the one the changes were made to.
+	 */
+	private int[] changes(Frontier frontier, Board b) {
+		long from = frontier.version();
+		long to = b.version();
+		if (to == from && frontier.hash() == b.hash()) {
+			return new int[0];
+		}
+		if (to <= from || to - from > m_changes.size()) {
+			return null;
+		}
+
+		// The change the frontier was made after must be the first, so
+		// that the frontier's board is known to be the one changed.
+		int[] changed = new int[2 * (int) (to - from)];
+		int n = 0;
+		boolean started = false;
+		for (long[] change : m_changes) {
+			if (change[0] == from) {
+				started = (change[1] == frontier.hash());
+			}
+			else if (change[0] > from && change[0] <= to && started) {
+				changed[n++] = (int) change[2];
+				changed[n++] = (int) change[3];
+				if (change[0] == to && change[1] != b.hash()) {
+					return null;
+				}
+			}
+		}
+		return (n == changed.length) ? changed : null;
+	}
+
+	/**
+	 * Adds a component's squares to the given index (m_bycell or
+	 * m_stalebycell).
+	 */
+	private static void index(HashMap<Integer, ArrayList<Long>> bycell, long hash, Component comp) {
+		for (int i = 0; i < comp.size(); i++) {
+			int cell = cell(comp.row(i), comp.col(i));
+			ArrayList<Long> hashes = bycell.get(cell);
+			if (hashes == null) {
+				hashes = new ArrayList<Long>(2);
+				bycell.put(cell, hashes);
+			}
+			hashes.add(hash);
+		}
+	}
+
+	/**
+	 * Removes a component's squares from the given index.
+	 */
+	private static void unindex(HashMap<Integer, ArrayList<Long>> bycell, long hash, Component comp) {
+		for (int i = 0; i < comp.size(); i++) {
+			int cell = cell(comp.row(i), comp.col(i));
+			ArrayList<Long> hashes = bycell.get(cell);
+			if (hashes == null) {
+				continue;
+			}
+			Iterator<Long> it = hashes.iterator();
+			while (it.hasNext()) {
+				if (it.next() == hash) {
+					it.remove();
+					break;
+				}
+			}
+			if (hashes.isEmpty()) {
+				bycell.remove(cell);
+			}
+		}
+	}
+
+	/**
+	 * Returns a single number standing for square (r,c). Squares just off the
+	 * edge of the board get numbers of their own too.
+	 */
+	private static int cell(int r, int c) {
+		return ((r + 2) << 16) | (c + 2);
+	}
+}
@@ -0,0 +1,487 @@
+package probcalc;
+
+import java.util.Arrays;
+
+/**
+ * Decides the frontier squares which can be worked out for certain from the
+ * numbers around them, before any layouts are enumerated. Every square this
+ * decides is one less unknown for the Calculator to guess at.
+ *
+ * Two rules are used, over and over until neither decides anything more:
+ *
+ * - If a number's flags and decided mines already make up the number, its
+ *   other squares are all safe. If they only make it up when every other
+ *   square is a mine, they are all mines.
+ * - If the undecided squares of one number are all next to a second number
+ *   too, the second number's other squares hold the difference between the
+ *   two. If that is none of them, or all of them, they are decided.
+ *
+ * Everything is kept in flat arrays of whole numbers, with one slot for each
+ * frontier square or number, so working the deductions out allocates next
+ * to nothing, however big the board is. The frontier squares are numbered
+ * in order, row by row, and found through the board's bitboards.
+ *
+ * The deductions can also be made from just some of the numbers, as the
+ * Frontier does for each region of the board in turn. Their squares then
+ * go on a bitboard of just the rows the numbers are in, so that the work
+ * is in proportion to the numbers, not the board.
+ */
+public class Deductions {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The board the deductions were made on.
+	private Board m_board;
+
+	// The frontier squares of the board (see Board.frontier()), and the
+	// number of them before each word of the bitboard. The n'th frontier
+	// square is square n below. If only some of the numbers were gone by,
+	// the squares next to them instead, from row m_top down to the last row
+	// with any of them.
+	private long[] m_frontier;
+	private int[] m_before;
+	private int m_top;
+
+	// m_fixed[i] is 0 if frontier square i is certainly safe, 1 if it is
+	// certainly a mine, or -1 if it has not been decided. Only frontier
+	// squares are ever decided.
+	private byte[] m_fixed;
+
+	// The number of squares decided to be mines, and to be safe.
+	private int m_mines;
+	private int m_safe;
+
+	// False if the numbers contradict each other, or a number has more (or
+	// fewer) flags around it than it can (which can only happen if some
+	// flags are wrong). Nothing is decided in that case.
+	private boolean m_consistent;
+
+	// Working state, only used while the deductions are being made.
+	// Number j is next to the squares m_cells[8j] to m_cells[8j + m_len[j] -
+	// 1]. It needs m_need[j] more mines among those which are still
+	// undecided, of which there are m_free[j].
+	private int[] m_cells;
+	private int[] m_len;
+	private int[] m_need;
+	private int[] m_free;
+
+	// The numbers next to frontier square i are m_cons[8i] to m_cons[8i +
+	// m_numcons[i] - 1].
+	private int[] m_cons;
+	private int[] m_numcons;
+
+	// The numbers waiting to be looked at (again), in a ring.
+	private int[] m_queue;
+	private boolean[] m_queued;
+	private int m_head;
+	private int m_size;
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Makes every deduction it can about the given
+	 * board. The board must not be changed while this is going on.
+	 */
+	public Deductions(Board b) {
+		m_board = b;
+		int rows = b.rows();
+		int words = b.words();
+		m_consistent = true;
+
+		// Number the frontier squares.
+		m_frontier = b.frontier();
+		m_before = new int[m_frontier.length];
+		int numsquares = 0;
+		for (int w = 0; w < m_frontier.length; w++) {
+			m_before[w] = numsquares;
+			numsquares += Long.bitCount(m_frontier[w]);
+		}
+
+		// The numbers which have unknown squares next to them.
+		long[] numbered = b.constraining();
+		int numcons = 0;
+		for (long bits : numbered) {
+			numcons += Long.bitCount(bits);
+		}
+		int[] numbers = new int[2 * numcons];
+		int n = 0;
+		for (int r = 0; r < rows; r++) {
+			for (int w = 0; w < words; w++) {
+				for (long bits = numbered[r * words + w]; bits != 0; bits &= bits - 1) {
+					numbers[n++] = r;
+					numbers[n++] = 64 * w + Long.numberOfTrailingZeros(bits);
+				}
+			}
+		}
+
+		// The numbers with flags next to them, but no unknown squares, say
+		// nothing about the frontier. Their flags must still add up, though.
+		long[] closed = b.closed();
+		for (int r = 0; r < rows && m_consistent; r++) {
+			for (int w = 0; w < words; w++) {
+				for (long bits = closed[r * words + w]; bits != 0; bits &= bits - 1) {
+					int c = 64 * w + Long.numberOfTrailingZeros(bits);
+					if (b.flags_adjacent(r, c) != Square.toInt(b.at(r, c))) {
+						m_consistent = false;
+					}
+				}
+			}
+		}
+
+		deduce(b, numbers, numsquares);
+	}
+
+	/**
+	 * Makes every deduction it can from the given numbers alone, which must
+	 * all have unknown squares next to them. Only the squares next to them
+	 * are decided, and numbers with no unknown squares left are not checked
+	 * at all. The board must not be changed while this is going on.
+	 *
+	 * @param b The board the numbers are on
+	 * @param numbers The numbers to go by, as a row and a column each
+	 */
+	public Deductions(Board b, int[] numbers) {
+		m_board = b;
+		m_consistent = true;
+
+		// Number the squares next to the numbers, in order row by row, on a
+		// bitboard of just the rows they are in.
+		int words = b.words();
+		int top = b.rows();
+		int bottom = -1;
+		for (int k = 0; k < numbers.length; k += 2) {
+			top = Math.min(top, numbers[k] - 1);
+			bottom = Math.max(bottom, numbers[k] + 1);
+		}
+		m_top = Math.max(top, 0);
+		m_frontier = new long[Math.max(Math.min(bottom, b.rows() - 1) - m_top + 1, 0) * words];
+		for (int k = 0; k < numbers.length; k += 2) {
+			for (int dr = -1; dr <= 1; dr++) {
+				for (int dc = -1; dc <= 1; dc++) {
+					int r = numbers[k] + dr;
+					int c = numbers[k + 1] + dc;
+					if (b.unknown(r, c)) {
+						m_frontier[(r - m_top) * words + (c >>> 6)] |= 1L << (c & 63);
+					}
+				}
+			}
+		}
+		m_before = new int[m_frontier.length];
+		int numsquares = 0;
+		for (int w = 0; w < m_frontier.length; w++) {
+			m_before[w] = numsquares;
+			numsquares += Long.bitCount(m_frontier[w]);
+		}
+
+		deduce(b, numbers, numsquares);
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the board the deductions were made on.
+	 */
+	public Board board() {
+		return m_board;
+	}
+
+	/**
+	 * Returns 0 if square (r,c) has been decided to be safe, 1 if it has been
+	 * decided to be a mine, or -1 if it hasn't been decided (or is out of
+	 * bounds).
+	 */
+	public int at(int r, int c) {
+		int i = index(r, c);
+		return (i == -1) ? -1 : m_fixed[i];
+	}
+
+	/**
+	 * Returns 0 if square (r,c) is known to be safe (it has been revealed, or
+	 * decided to be safe), 1 if it is taken to be a mine (it is flagged, or
+	 * has been decided to be a mine), or -1 if it could be either.
+	 */
+	public int value(int r, int c) {
+		if (r < 0 || c < 0 || r >= m_board.rows() || c >= m_board.cols()) {
+			return -1;
+		}
+		if (m_board.known(r, c)) {
+			return 0;
+		}
+		if (m_board.at(r, c) == Square.FLAG) {
+			return 1;
+		}
+		return at(r, c);
+	}
+
+	/**
+	 * Returns the number of squares decided to be mines.
+	 */
+	public int mines() {
+		return m_mines;
+	}
+
+	/**
+	 * Returns the number of squares decided to be safe.
+	 */
+	public int safe() {
+		return m_safe;
+	}
+
+	/**
+	 * Returns false if the numbers on the board contradict each other, or
+	 * the flags around one of them, in which case nothing has been decided.
+	 */
+	public boolean consistent() {
+		return m_consistent;
+	}
+
+	/**
+	 * Returns the number of square (r,c) among the squares the deductions
+	 * were made about, counting row by row, or -1 if it isn't one of them
+	 * (or is out of bounds).
+	 */
+	public int index(int r, int c) {
+		r -= m_top;
+		if (r < 0 || c < 0 || c >= m_board.cols()) {
+			return -1;
+		}
+		int w = r * m_board.words() + (c >>> 6);
+		if (w >= m_frontier.length) {
+			return -1;
+		}
+		long bit = 1L << (c & 63);
+		if ((m_frontier[w] & bit) == 0) {
+			return -1;
+		}
+		return m_before[w] + Long.bitCount(m_frontier[w] & (bit - 1));
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//							PRIVATE FUNCTIONS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Makes the deductions, given the numbers to go by (as a row and a
+	 * column each) and the number of squares next to them.
+	 */
+	private void deduce(Board b, int[] numbers, int numsquares) {
+		m_fixed = new byte[numsquares];
+		Arrays.fill(m_fixed, (byte) -1);
+
+		// Note down each number's squares, and each square's numbers.
+		int numcons = numbers.length / 2;
+		m_cells = new int[8 * numcons];
+		m_len = new int[numcons];
+		m_need = new int[numcons];
+		m_free = new int[numcons];
+		m_cons = new int[8 * numsquares];
+		m_numcons = new int[numsquares];
+		for (int j = 0; j < numcons; j++) {
+			note(b, j, numbers[2 * j], numbers[2 * j + 1]);
+		}
+
+		// Look at every number, and then at every number next to a square
+		// which has been decided, until nothing more can be decided.
+		m_queue = new int[numcons];
+		m_queued = new boolean[numcons];
+		for (int j = 0; j < numcons; j++) {
+			enqueue(j);
+		}
+		while (m_size > 0 && m_consistent) {
+			int j = m_queue[m_head];
+			m_head = (m_head + 1) % m_queue.length;
+			m_size--;
+			m_queued[j] = false;
+			examine(j);
+		}
+
+		// If the numbers contradict each other, none of the deductions can
+		// be trusted.
+		if (!m_consistent) {
+			Arrays.fill(m_fixed, (byte) -1);
+			m_mines = 0;
+			m_safe = 0;
+		}
+
+		m_cells = null;
+		m_len = null;
+		m_need = null;
+		m_free = null;
+		m_cons = null;
+		m_numcons = null;
+		m_queue = null;
+		m_queued = null;
+	}
+
+	/**
+	 * Notes down the squares next to number j, at (r,c), and the number next
+	 * to each of them.
+	 */
+	private void note(Board b, int j, int r, int c) {
+		m_need[j] = Square.toInt(b.at(r, c));
+		for (int dr = -1; dr <= 1; dr++) {
+			for (int dc = -1; dc <= 1; dc++) {
+				if (b.unknown(r + dr, c + dc)) {
+					// An unknown square next to a number is on the frontier.
+					int i = index(r + dr, c + dc);
+					m_cells[8 * j + m_len[j]] = i;
+					m_len[j]++;
+					m_cons[8 * i + m_numcons[i]] = j;
+					m_numcons[i]++;
+				}
+				else if (b.at(r + dr, c + dc) == Square.FLAG) {
+					m_need[j]--;
+				}
+			}
+		}
+		m_free[j] = m_len[j];
+	}
+	
+	/**
+	 * Applies both rules to number j.
+	 */
+	private void examine(int j) {
+		int need = m_need[j];
+		int free = m_free[j];
+		if (need < 0 || need > free) {
+			m_consistent = false;
+			return;
+		}
+		if (free == 0) {
+			return;
+		}
+
+		// The number decides all of its squares by itself.
+		if (need == 0 || need == free) {
+			int value = (need == 0) ? 0 : 1;
+			for (int k = 8 * j; k < 8 * j + m_len[j]; k++) {
+				decide(m_cells[k], value);
+			}
+			return;
+		}
+
+		// Compare it with every number which shares an undecided square
+		// with it.
+		for (int k = 8 * j; k < 8 * j + m_len[j] && m_consistent; k++) {
+			int i = m_cells[k];
+			if (m_fixed[i] != -1) {
+				continue;
+			}
+			for (int n = 8 * i; n < 8 * i + m_numcons[i] && m_consistent; n++) {
+				int other = m_cons[n];
+				if (other == j) {
+					continue;
+				}
+				if (subset(j, other)) {
+					decideRest(j, other);
+				}
+				else if (subset(other, j)) {
+					decideRest(other, j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if every undecided square of number a is also next to
+	 * number b.
+	 */
+	private boolean subset(int a, int b) {
+		if (m_free[a] > m_free[b]) {
+			return false;
+		}
+		for (int k = 8 * a; k < 8 * a + m_len[a]; k++) {
+			int i = m_cells[k];
+			if (m_fixed[i] == -1 && !covers(b, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Given that the undecided squares of number a are all next to number b
+	 * too, decides b's other undecided squares if the difference between the
+	 * two numbers allows it.
+	 */
+	private void decideRest(int a, int b) {
+		int rest = m_free[b] - m_free[a];
+		int mines = m_need[b] - m_need[a];
+		if (rest == 0) {
+			if (mines != 0) {
+				m_consistent = false;
+			}
+			return;
+		}
+		if (mines < 0 || mines > rest) {
+			m_consistent = false;
+			return;
+		}
+		if (mines != 0 && mines != rest) {
+			return;
+		}
+
+		int value = (mines == 0) ? 0 : 1;
+		for (int k = 8 * b; k < 8 * b + m_len[b]; k++) {
+			int i = m_cells[k];
+			if (m_fixed[i] == -1 && !covers(a, i)) {
+				decide(i, value);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if number j is next to square i.
+	 */
+	private boolean covers(int j, int i) {
+		for (int k = 8 * j; k < 8 * j + m_len[j]; k++) {
+			if (m_cells[k] == i) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decides square i (if it hasn't been already), and queues up the
+	 * numbers next to it to be looked at again.
+	 */
+	private void decide(int i, int value) {
+		if (m_fixed[i] != -1) {
+			return;
+		}
+		m_fixed[i] = (byte) value;
+		if (value == 1) {
+			m_mines++;
+		}
+		else {
+			m_safe++;
+		}
+		for (int n = 8 * i; n < 8 * i + m_numcons[i]; n++) {
+			int j = m_cons[n];
+			m_free[j]--;
+			m_need[j] -= value;
+			enqueue(j);
+		}
+	}
+
+	/**
+	 * Queues up number j to be looked at, unless it is already waiting.
+	 */
+	private void enqueue(int j) {
+		if (m_queued[j]) {
+			return;
+		}
+		m_queued[j] = true;
+		m_queue[(m_head + m_size) % m_queue.length] = j;
+		m_size++;
+	}
+}
@@ -0,0 +1,32 @@
+package probcalc;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Enumerates every layout of a component by row-reducing its constraints
+ * and guessing only the free variables (see Component.solveByElimination).
+ * It pays off for components with many constraints for their size, which
+ * leave few variables free, and it can start from the reduced systems of
+ * earlier components in the cache.
+ */
+public class EliminationEngine implements ProbabilityEngine {
+
+	/**
+	 * Returns "elimination".
+	 */
+	public String name() {
+		return "elimination";
+	}
+
+	/**
+	 * Solves the component by elimination. This always works.
+	 */
+	public boolean solve(Component comp, int maxmines, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, ComponentCache cache) {
+		List<Component> earlier = (cache == null) ? null : cache.earlier(comp);
+		comp.solveByElimination(maxmines, pool, cancel, known, earlier);
+		return true;
+	}
+}
@@ -0,0 +1,290 @@
+package probcalc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Picks the engine which solves each component of a board, going by what
+ * the component looks like: how many squares it has, how many constraints
+ * there are for each square, and how many mines are left. Everything which
+ * works out probabilities goes through a selector, so a different one (or
+ * one with different settings) can be swapped in without touching anything
+ * else.
+ *
+ * The engines are tried in this order, and the first to accept the
+ * component solves it:
+ *
+ * - The engine chosen in the configuration, if there is one.
+ * - A sweep (TransferEngine), for components of at least transferSize()
+ *   squares. It turns down those which are too wide.
+ * - Sampling (SamplingEngine), for components of at least samplingSize()
+ *   squares, which are too big to enumerate.
+ * - Elimination (EliminationEngine), for components of at least
+ *   eliminationSize() squares whose constraints are dense enough to leave
+ *   at most maxFree() of them free, and with enough mines left that a
+ *   search wouldn't be cut short by them anyway.
+ * - A plain search (SearchEngine) for everything else.
+ *
+ * Exact engines all give the same probabilities, so the choice only changes
+ * how long they take. Only sampling gives estimates.
+ *
+ * The engine can be forced with the system property "probcalc.engine"
+ * (search, elimination, transfer or sampling), and the number of samples
+ * set with "probcalc.samples".
+ */
+public class EngineSelector {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The engines to choose between.
+	private ProbabilityEngine m_search;
+	private ProbabilityEngine m_elimination;
+	private ProbabilityEngine m_transfer;
+	private ProbabilityEngine m_sampling;
+
+	// The engine to try before any other, or null to go by the components
+	// alone.
+	private ProbabilityEngine m_forced;
+
+	// The sizes (in squares) from which on components are swept, sampled,
+	// or considered for elimination.
+	private int m_transfersize;
+	private int m_samplingsize;
+	private int m_eliminationsize;
+
+	// Elimination is only used if the component's squares outnumber its
+	// constraints by at most this many (roughly the number of variables
+	// left free once they have been reduced).
+	private int m_maxfree;
+
+	// The selector the Calculator uses when it isn't given one, set up from
+	// the system properties when it is first needed.
+	private static EngineSelector s_standard;
+
+	// The number of samples taken of each component unless the
+	// configuration says otherwise.
+	public static final long DEFAULT_SAMPLES = 200000;
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Makes a selector with the usual settings, taking
+	 * the given number of samples of components which are sampled.
+	 */
+	public EngineSelector(long samples) {
+		m_search = new SearchEngine();
+		m_elimination = new EliminationEngine();
+		m_transfer = new TransferEngine();
+		m_sampling = new SamplingEngine(samples);
+		m_transfersize = 40;
+		m_samplingsize = 400;
+		m_eliminationsize = 24;
+		m_maxfree = 16;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the selector used when none is given, set up from the system
+	 * properties "probcalc.engine" and "probcalc.samples". Throws an
+	 * IllegalArgumentException if either is set to something which makes no
+	 * sense.
+	 */
+	public static synchronized EngineSelector standard() {
+		if (s_standard == null) {
+			long samples = DEFAULT_SAMPLES;
+			String property = System.getProperty("probcalc.samples");
+			if (property != null) {
+				try {
+					samples = Long.parseLong(property.trim());
+				}
+				catch (NumberFormatException e) {
+					throw new IllegalArgumentException("probcalc.samples is not a number: " + property);
+				}
+			}
+			EngineSelector selector = new EngineSelector(samples);
+			property = System.getProperty("probcalc.engine");
+			if (property != null) {
+				selector.setForced(property.trim());
+			}
+			s_standard = selector;
+		}
+		return s_standard;
+	}
+
+	/**
+	 * Returns the engines to try for the given component, in order, given
+	 * that it may use up to 'maxmines' mines. The last one always accepts.
+	 */
+	public synchronized List<ProbabilityEngine> choose(Component comp, int maxmines) {
+		List<ProbabilityEngine> engines = new ArrayList<ProbabilityEngine>(3);
+		if (m_forced != null) {
+			engines.add(m_forced);
+		}
+
+		int size = comp.size();
+		int free = size - comp.constraints();
+		if (size >= m_transfersize && m_forced != m_transfer) {
+			engines.add(m_transfer);
+		}
+		if (size >= m_samplingsize) {
+			engines.add(m_sampling);
+		}
+		else if (size >= m_eliminationsize && free <= m_maxfree && maxmines >= size / 2) {
+			engines.add(m_elimination);
+		}
+		else {
+			engines.add(m_search);
+		}
+		return engines;
+	}
+
+	/**
+	 * Returns the engine with the given name, or null if there isn't one.
+	 */
+	public synchronized ProbabilityEngine engine(String name) {
+		ProbabilityEngine[] engines = new ProbabilityEngine[] {
+			m_search, m_elimination, m_transfer, m_sampling
+		};
+		for (ProbabilityEngine engine : engines) {
+			if (engine.name().equals(name)) {
+				return engine;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the engine tried before any other, or null if there isn't one.
+	 */
+	public synchronized ProbabilityEngine forced() {
+		return m_forced;
+	}
+
+	/**
+	 * Returns the number of squares from which on components are swept, if
+	 * they are thin enough.
+	 */
+	public synchronized int transferSize() {
+		return m_transfersize;
+	}
+
+	/**
+	 * Returns the number of squares from which on components are sampled
+	 * rather than enumerated.
+	 */
+	public synchronized int samplingSize() {
+		return m_samplingsize;
+	}
+
+	/**
+	 * Returns the number of squares from which on components are considered
+	 * for elimination.
+	 */
+	public synchronized int eliminationSize() {
+		return m_eliminationsize;
+	}
+
+	/**
+	 * Returns the most variables elimination may leave free for it to be
+	 * used.
+	 */
+	public synchronized int maxFree() {
+		return m_maxfree;
+	}
+
+	/**
+	 * Works out the probabilities for the given board. The board must not be
+	 * changed while this is going on.
+	 */
+	public Calculator calculate(Board b) {
+		return new Calculator(b, this, null, null);
+	}
+
+	/**
+	 * Works out the probabilities for the given board, re-using any
+	 * components which have already been solved, unless it is told to stop
+	 * part way through (see Calculator).
+	 */
+	public Calculator calculate(Board b, ComponentCache cache, AtomicBoolean cancel) {
+		return new Calculator(b, this, cache, cancel);
+	}
+
+	/**
+	 * Works out the probabilities for the given board as well as it can by
+	 * the given deadline, in System.nanoTime() terms (see Calculator).
+	 */
+	public Calculator calculate(Board b, ComponentCache cache, AtomicBoolean cancel, long deadline) {
+		return new Calculator(b, this, cache, cancel, deadline);
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Makes the engine with the given name the first to be tried for every
+	 * component, or goes back to choosing by the components alone if the
+	 * name is null. Engines which turn a component down still fall back on
+	 * the usual choice. Throws an IllegalArgumentException if there is no
+	 * such engine.
+	 */
+	public synchronized void setForced(String name) {
+		if (name == null) {
+			m_forced = null;
+			return;
+		}
+		ProbabilityEngine engine = engine(name);
+		if (engine == null) {
+			throw new IllegalArgumentException("no such probability engine: " + name);
+		}
+		m_forced = engine;
+	}
+
+	/**
+	 * Sets the number of squares from which on components are swept (see
+	 * Component.solveByTransfer), if they are thin enough. Sweeping is exact
+	 * and takes time in proportion to a component's length, but has more to
+	 * set up than a plain search, so it only pays off for big components.
+	 */
+	public synchronized void setTransferSize(int size) {
+		m_transfersize = size;
+	}
+
+	/**
+	 * Sets the number of squares from which on components are sampled
+	 * rather than enumerated (see Component.sample). Enumerating a component
+	 * can take time exponential in its size, whereas sampling always takes
+	 * about the same time, but only gives estimates.
+	 */
+	public synchronized void setSamplingSize(int size) {
+		m_samplingsize = size;
+	}
+
+	/**
+	 * Sets the number of squares from which on components are considered
+	 * for elimination.
+	 */
+	public synchronized void setEliminationSize(int size) {
+		m_eliminationsize = size;
+	}
+
+	/**
+	 * Sets the most variables elimination may leave free for it to be used.
+	 * Elimination guesses every combination of them, so each one more
+	 * doubles its work.
+	 */
+	public synchronized void setMaxFree(int free) {
+		m_maxfree = free;
+	}
+}
@@ -0,0 +1,659 @@
+package probcalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * What is known about the frontier of a board: which squares the numbers
+ * give away by themselves, and how the rest split up into components. This
+ * is what the Calculator works from.
+ *
+ * The frontier is split into regions. A region is a set of numbers which
+ * share unknown squares, directly or through each other, along with the
+ * squares next to them. Nothing in one region says anything about another,
+ * so each has its own Deductions and its own components, and the components
+ * keep their counts once they have been solved.
+ *
+ * Revealing or flagging a square only changes the regions close to it: one
+ * of their numbers or squares must be within two squares of the change. So
+ * the frontier can be brought up to date with a list of the squares which
+ * have changed, by working out just those regions again from their numbers
+ * (and any new numbers near the changes). Everything else, solved
+ * components included, is kept as it is. The ComponentCache keeps the
+ * frontier of one calculation for the next in this way.
+ */
+public class Frontier {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The board the frontier was last worked out for, and its version and
+	// hash at the time.
+	private Board m_board;
+	private long m_version;
+	private long m_hash;
+
+	// The number of columns of the board. Squares are looked up as
+	// r * m_cols + c.
+	private int m_cols;
+
+	// The regions, and the region each number, and each frontier square,
+	// belongs to.
+	private LinkedHashSet<Region> m_regions;
+	private HashMap<Integer, Region> m_bynumber;
+	private HashMap<Integer, Region> m_bysquare;
+
+	// The numbers with flags next to them, but no unknown squares, whose
+	// flags don't add up to the number.
+	private HashSet<Integer> m_wrong;
+
+	// The number of frontier squares, the number decided to be mines and
+	// to be safe, and the number of regions whose numbers contradict each
+	// other, over all of the regions.
+	private int m_squares;
+	private int m_mines;
+	private int m_safe;
+	private int m_inconsistent;
+
+	// Puts components in order, by their first square.
+	private static final Comparator<Component> s_byfirst = new Comparator<Component>() {
+		public int compare(Component a, Component b) {
+			if (a.row(0) != b.row(0)) {
+				return Integer.compare(a.row(0), b.row(0));
+			}
+			return Integer.compare(a.col(0), b.col(0));
+		}
+	};
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Works out the whole frontier of the given board.
+	 * The board must not be changed while this is going on.
+	 */
+	public Frontier(Board b) {
+		m_cols = b.cols();
+		m_regions = new LinkedHashSet<Region>();
+		m_bynumber = new HashMap<Integer, Region>();
+		m_bysquare = new HashMap<Integer, Region>();
+		m_wrong = new HashSet<Integer>();
+		int rows = b.rows();
+		int words = b.words();
+
+		// Check the flags around the numbers which are closed already.
+		long[] closed = b.closed();
+		for (int r = 0; r < rows; r++) {
+			for (int w = 0; w < words; w++) {
+				for (long bits = closed[r * words + w]; bits != 0; bits &= bits - 1) {
+					int c = 64 * w + Long.numberOfTrailingZeros(bits);
+					if (b.flags_adjacent(r, c) != Square.toInt(b.at(r, c))) {
+						m_wrong.add(r * m_cols + c);
+					}
+				}
+			}
+		}
+
+		// Split every number which still says something into regions.
+		long[] numbered = b.constraining();
+		int count = 0;
+		for (long bits : numbered) {
+			count += Long.bitCount(bits);
+		}
+		int[] numbers = new int[count];
+		int n = 0;
+		for (int r = 0; r < rows; r++) {
+			for (int w = 0; w < words; w++) {
+				for (long bits = numbered[r * words + w]; bits != 0; bits &= bits - 1) {
+					numbers[n++] = r * m_cols + 64 * w + Long.numberOfTrailingZeros(bits);
+				}
+			}
+		}
+		split(b, numbers);
+
+		m_board = b;
+		m_version = b.version();
+		m_hash = b.hash();
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the board the frontier was last worked out for.
+	 */
+	public Board board() {
+		return m_board;
+	}
+
+	/**
+	 * Returns the version of the board (see Board.version()) the frontier
+	 * was last worked out for.
+	 */
+	public long version() {
+		return m_version;
+	}
+
+	/**
+	 * Returns the hash of the board (see Board.hash()) the frontier was last
+	 * worked out for.
+	 */
+	public long hash() {
+		return m_hash;
+	}
+
+	/**
+	 * Returns the number of frontier squares: unknown squares with a number
+	 * next to them.
+	 */
+	public int squares() {
+		return m_squares;
+	}
+
+	/**
+	 * Returns the number of frontier squares decided to be mines.
+	 */
+	public int mines() {
+		return m_mines;
+	}
+
+	/**
+	 * Returns the number of frontier squares decided to be safe.
+	 */
+	public int safe() {
+		return m_safe;
+	}
+
+	/**
+	 * Returns false if some numbers contradict each other, or the flags
+	 * around them (which can only happen if some flags are wrong).
+	 */
+	public boolean consistent() {
+		return m_inconsistent == 0 && m_wrong.isEmpty();
+	}
+
+	/**
+	 * Returns 0 if square (r,c) is known to be safe (it has been revealed, or
+	 * decided to be safe), 1 if it is taken to be a mine (it is flagged, or
+	 * has been decided to be a mine), or -1 if it could be either (or is out
+	 * of bounds).
+	 */
+	public int value(int r, int c) {
+		if (r < 0 || c < 0 || r >= m_board.rows() || c >= m_cols) {
+			return -1;
+		}
+		Region region = m_bysquare.get(r * m_cols + c);
+		if (region != null) {
+			return region.known().at(r, c);
+		}
+		return m_board.known(r, c) ? 0 : (m_board.at(r, c) == Square.FLAG) ? 1 : -1;
+	}
+
+	/**
+	 * Returns the regions of the frontier, in no particular order. Each of
+	 * them stays as it is, even when the frontier is brought up to date.
+	 */
+	public Region[] regions() {
+		return m_regions.toArray(new Region[0]);
+	}
+
+	/**
+	 * Returns every component of the frontier, in order by their first
+	 * squares. Those which have been solved (see solved()) are solved.
+	 */
+	public Component[] components() {
+		ArrayList<Component> comps = new ArrayList<Component>();
+		for (Region region : m_regions) {
+			for (int i = 0; i < region.m_comps.length; i++) {
+				comps.add((region.m_solved[i] != null) ? region.m_solved[i] : region.m_comps[i]);
+			}
+		}
+		Component[] sorted = comps.toArray(new Component[0]);
+		Arrays.sort(sorted, s_byfirst);
+		return sorted;
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Keeps the given (exactly) solved component in place of the one of the
+	 * frontier which is the same as it, so that it need not be solved again.
+	 * Does nothing if there isn't one.
+	 */
+	public void solved(Component comp) {
+		Region region = m_bysquare.get(comp.row(0) * m_cols + comp.col(0));
+		if (region == null) {
+			return;
+		}
+		for (int i = 0; i < region.m_comps.length; i++) {
+			if (region.m_comps[i].sameAs(comp)) {
+				region.m_solved[i] = comp;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Brings the frontier up to date with the given board, which must be
+	 * the board it was last worked out for with the given squares changed
+	 * (and no others). Only the regions near those squares are worked out
+	 * again. The board must not be changed while this is going on.
+	 *
+	 * @param b The board as it is now
+	 * @param changed The squares which have changed, as a row and a column
+	 * 				  each
+	 */
+	public void update(Board b, int[] changed) {
+		int rows = b.rows();
+
+		// Any region with a number or a square within two squares of a
+		// change may have changed, and so may the numbers next to it. Any
+		// number near a change may have started to say something.
+		LinkedHashSet<Region> near = new LinkedHashSet<Region>();
+		HashSet<Integer> numbers = new HashSet<Integer>();
+		for (int k = 0; k < changed.length; k += 2) {
+			for (int r = changed[k] - 2; r <= changed[k] + 2; r++) {
+				for (int c = changed[k + 1] - 2; c <= changed[k + 1] + 2; c++) {
+					if (r < 0 || c < 0 || r >= rows || c >= m_cols) {
+						continue;
+					}
+					int square = r * m_cols + c;
+					Region region = m_bynumber.get(square);
+					if (region != null) {
+						near.add(region);
+					}
+					region = m_bysquare.get(square);
+					if (region != null) {
+						near.add(region);
+					}
+					if (b.known(r, c) && b.unknown_adjacent(r, c)) {
+						numbers.add(square);
+					}
+					if (Math.abs(r - changed[k]) <= 1 && Math.abs(c - changed[k + 1]) <= 1) {
+						check(b, r, c);
+					}
+				}
+			}
+		}
+
+		// Take those regions out, keeping their numbers which still say
+		// something.
+		for (Region region : near) {
+			remove(region);
+			for (int square : region.m_numbers) {
+				int r = square / m_cols;
+				int c = square % m_cols;
+				if (b.known(r, c) && b.unknown_adjacent(r, c)) {
+					numbers.add(square);
+				}
+			}
+		}
+
+		// Work the numbers out into regions again. No other region can
+		// share a square with them.
+		int[] sorted = new int[numbers.size()];
+		int n = 0;
+		for (int square : numbers) {
+			sorted[n++] = square;
+		}
+		Arrays.sort(sorted);
+		split(b, sorted);
+
+		m_board = b;
+		m_version = b.version();
+		m_hash = b.hash();
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//							PRIVATE FUNCTIONS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Splits the given numbers (as r * cols + c, in order) into regions, and
+	 * adds them to the frontier.
+	 */
+	private void split(Board b, int[] numbers) {
+		// Numbers which share an unknown square are in the same region.
+		int[] parent = new int[numbers.length];
+		HashMap<Integer, Integer> owner = new HashMap<Integer, Integer>();
+		for (int j = 0; j < numbers.length; j++) {
+			parent[j] = j;
+			int r = numbers[j] / m_cols;
+			int c = numbers[j] % m_cols;
+			for (int dr = -1; dr <= 1; dr++) {
+				for (int dc = -1; dc <= 1; dc++) {
+					if (!b.unknown(r + dr, c + dc)) {
+						continue;
+					}
+					Integer other = owner.put((r + dr) * m_cols + c + dc, j);
+					if (other != null) {
+						parent[find(parent, j)] = find(parent, other);
+					}
+				}
+			}
+		}
+
+		// Gather up each region's numbers, keeping them in order.
+		int[] size = new int[numbers.length];
+		for (int j = 0; j < numbers.length; j++) {
+			size[find(parent, j)]++;
+		}
+		int[][] members = new int[numbers.length][];
+		for (int j = 0; j < numbers.length; j++) {
+			int root = find(parent, j);
+			if (members[root] == null) {
+				members[root] = new int[2 * size[root]];
+				size[root] = 0;
+			}
+			members[root][size[root]++] = numbers[j] / m_cols;
+			members[root][size[root]++] = numbers[j] % m_cols;
+		}
+		for (int j = 0; j < numbers.length; j++) {
+			if (members[j] != null) {
+				add(new Region(b, members[j]));
+			}
+		}
+	}
+
+	/**
+	 * Adds a region to the frontier.
+	 */
+	private void add(Region region) {
+		m_regions.add(region);
+		for (int square : region.m_numbers) {
+			m_bynumber.put(square, region);
+		}
+		for (int square : region.m_squares) {
+			m_bysquare.put(square, region);
+		}
+		m_squares += region.m_squares.length;
+		m_mines += region.m_known.mines();
+		m_safe += region.m_known.safe();
+		if (!region.m_known.consistent()) {
+			m_inconsistent++;
+		}
+	}
+
+	/**
+	 * Takes a region out of the frontier.
+	 */
+	private void remove(Region region) {
+		m_regions.remove(region);
+		for (int square : region.m_numbers) {
+			m_bynumber.remove(square);
+		}
+		for (int square : region.m_squares) {
+			m_bysquare.remove(square);
+		}
+		m_squares -= region.m_squares.length;
+		m_mines -= region.m_known.mines();
+		m_safe -= region.m_known.safe();
+		if (!region.m_known.consistent()) {
+			m_inconsistent--;
+		}
+	}
+
+	/**
+	 * Notes down whether square (r,c) is a number with flags next to it, but
+	 * no unknown squares, whose flags don't add up.
+	 */
+	private void check(Board b, int r, int c) {
+		int square = r * m_cols + c;
+		m_wrong.remove(square);
+		if (!b.known(r, c) || b.unknown_adjacent(r, c)) {
+			return;
+		}
+		int flags = b.flags_adjacent(r, c);
+		if (flags > 0 && flags != Square.toInt(b.at(r, c))) {
+			m_wrong.add(square);
+		}
+	}
+
+	/**
+	 * Returns the representative of the union-find set containing v,
+	 * flattening the path to it along the way.
+	 */
+	private static int find(int[] parent, int v) {
+		while (parent[v] != v) {
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//								REGIONS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * One region of the frontier: numbers which share unknown squares,
+	 * directly or through each other, and the squares next to them. Once it
+	 * has been made, only its solved components ever change.
+	 */
+	public static class Region {
+		// The region's numbers, and the squares next to them, as
+		// r * cols + c, in order.
+		private int[] m_numbers;
+		private int[] m_squares;
+		private int m_cols;
+
+		// The deductions made from the region's numbers.
+		private Deductions m_known;
+
+		// The components of the squares which were not decided, as they
+		// were made, and the same components once they have been solved
+		// exactly (or null until then). They are in order by their first
+		// squares.
+		private Component[] m_comps;
+		private Component[] m_solved;
+
+		/**
+		 * Makes the region with the given numbers (as a row and a column
+		 * each, in order), which must be all of the numbers sharing squares
+		 * with them.
+		 */
+		Region(Board b, int[] numbers) {
+			m_cols = b.cols();
+			m_known = new Deductions(b, numbers);
+			int numcons = numbers.length / 2;
+			m_numbers = new int[numcons];
+			for (int j = 0; j < numcons; j++) {
+				m_numbers[j] = numbers[2 * j] * m_cols + numbers[2 * j + 1];
+			}
+
+			// The squares next to the numbers, in order.
+			int[] squares = new int[8 * numcons];
+			int n = 0;
+			for (int j = 0; j < numcons; j++) {
+				for (int dr = -1; dr <= 1; dr++) {
+					for (int dc = -1; dc <= 1; dc++) {
+						if (b.unknown(numbers[2 * j] + dr, numbers[2 * j + 1] + dc)) {
+							squares[n++] = m_numbers[j] + dr * m_cols + dc;
+						}
+					}
+				}
+			}
+			Arrays.sort(squares, 0, n);
+			int numsquares = 0;
+			for (int i = 0; i < n; i++) {
+				if (i == 0 || squares[i] != squares[i - 1]) {
+					squares[numsquares++] = squares[i];
+				}
+			}
+			m_squares = Arrays.copyOf(squares, numsquares);
+
+			// Number the squares which were not decided, in order.
+			int[] vars = new int[numsquares];
+			int numvars = 0;
+			for (int i = 0; i < numsquares; i++) {
+				if (m_known.at(row(i), col(i)) == -1) {
+					vars[i] = numvars;
+					numvars++;
+				}
+				else {
+					vars[i] = -1;
+				}
+			}
+
+			// Squares next to the same number can affect each other, so
+			// they are joined into the same component.
+			int[] parent = new int[numvars];
+			for (int v = 0; v < numvars; v++) {
+				parent[v] = v;
+			}
+			for (int j = 0; j < numcons; j++) {
+				int first = -1;
+				for (int dr = -1; dr <= 1; dr++) {
+					for (int dc = -1; dc <= 1; dc++) {
+						int v = var(vars, numbers[2 * j] + dr, numbers[2 * j + 1] + dc);
+						if (v == -1) {
+							continue;
+						}
+						if (first == -1) {
+							first = v;
+						}
+						else {
+							parent[find(parent, v)] = find(parent, first);
+						}
+					}
+				}
+			}
+
+			// Number the components, and find where each square sits within
+			// its own component.
+			int numcomps = 0;
+			int[] comp = new int[numvars];
+			int[] local = new int[numvars];
+			int[] compsize = new int[numvars];
+			int[] rootcomp = new int[numvars];
+			Arrays.fill(rootcomp, -1);
+			for (int v = 0; v < numvars; v++) {
+				int root = find(parent, v);
+				if (rootcomp[root] == -1) {
+					rootcomp[root] = numcomps;
+					numcomps++;
+				}
+				comp[v] = rootcomp[root];
+				local[v] = compsize[comp[v]];
+				compsize[comp[v]]++;
+			}
+			int[][] comprows = new int[numcomps][];
+			int[][] compcols = new int[numcomps][];
+			for (int i = 0; i < numcomps; i++) {
+				comprows[i] = new int[compsize[i]];
+				compcols[i] = new int[compsize[i]];
+			}
+			for (int i = 0; i < numsquares; i++) {
+				int v = vars[i];
+				if (v != -1) {
+					comprows[comp[v]][local[v]] = row(i);
+					compcols[comp[v]][local[v]] = col(i);
+				}
+			}
+
+			// Make an equation from every number which has some undecided
+			// squares next to it, and hand it to their component.
+			ArrayList<ArrayList<int[]>> constraints = new ArrayList<ArrayList<int[]>>();
+			ArrayList<ArrayList<Integer>> values = new ArrayList<ArrayList<Integer>>();
+			for (int i = 0; i < numcomps; i++) {
+				constraints.add(new ArrayList<int[]>());
+				values.add(new ArrayList<Integer>());
+			}
+			for (int j = 0; j < numcons; j++) {
+				int r = numbers[2 * j];
+				int c = numbers[2 * j + 1];
+
+				// The undecided squares which take part in the equation, and
+				// the number of flags (and decided mines) around the number.
+				int[] cells = new int[8];
+				int numcells = 0;
+				int num_flags = 0;
+				int owner = -1;
+				for (int dr = -1; dr <= 1; dr++) {
+					for (int dc = -1; dc <= 1; dc++) {
+						int v = var(vars, r + dr, c + dc);
+						if (v != -1) {
+							owner = comp[v];
+							cells[numcells] = local[v];
+							numcells++;
+						}
+						else if (m_known.value(r + dr, c + dc) == 1) {
+							num_flags++;
+						}
+					}
+				}
+
+				// Every square around it has been decided, and the
+				// deductions already agree with it.
+				if (numcells == 0) {
+					continue;
+				}
+
+				// The solution is the number minus the flags (and decided
+				// mines) already around it.
+				constraints.get(owner).add(Arrays.copyOf(cells, numcells));
+				values.get(owner).add(Square.toInt(b.at(r, c)) - num_flags);
+			}
+
+			m_comps = new Component[numcomps];
+			m_solved = new Component[numcomps];
+			for (int i = 0; i < numcomps; i++) {
+				int[][] equations = constraints.get(i).toArray(new int[0][]);
+				int[] solutions = new int[equations.length];
+				for (int j = 0; j < equations.length; j++) {
+					solutions[j] = values.get(i).get(j);
+				}
+				m_comps[i] = new Component(comprows[i], compcols[i], equations, solutions);
+			}
+		}
+
+		/**
+		 * Returns the number of squares in the region.
+		 */
+		public int size() {
+			return m_squares.length;
+		}
+
+		/**
+		 * Returns the board row of the region's i'th square.
+		 */
+		public int row(int i) {
+			return m_squares[i] / m_cols;
+		}
+
+		/**
+		 * Returns the board column of the region's i'th square.
+		 */
+		public int col(int i) {
+			return m_squares[i] % m_cols;
+		}
+
+		/**
+		 * Returns the deductions made from the region's numbers.
+		 */
+		public Deductions known() {
+			return m_known;
+		}
+
+		/**
+		 * Returns the number of undecided square (r,c) among vars, or -1 if
+		 * it isn't one of the region's squares or has been decided.
+		 */
+		private int var(int[] vars, int r, int c) {
+			int i = m_known.index(r, c);
+			return (i < 0) ? -1 : vars[i];
+		}
+	}
+}
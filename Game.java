@@ -5,15 +5,24 @@ import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
- * This class runs an actual minesweeper game. It is the barrier between the
- * player's board and the actual minefield (so you know the computer doesn't
- * cheat at all...)
+ * This class shows a minesweeper game in a window, along with the chance of
+ * every square being a mine. The game itself is run by a GameEngine, which
+ * is the barrier between the player's board and the actual minefield (so you
+ * know the computer doesn't cheat at all...). This class only turns mouse
+ * clicks into moves, and draws the board.
  *
  */
 public class Game extends JPanel {
@@ -25,28 +34,50 @@ public class Game extends JPanel {
 	// The number of pixels on each edge of a single cell in the game.
 	public final static int CELL_SIZE = 36;
 	
-	// The number of rows in the game board.
+	// The game being shown, which holds the board the player can see and
+	// the field containing the mines.
+	private GameEngine m_engine;
+	// The number of rows and columns in the game board.
 	private int m_rows;
-	// The number of columns in the game board.
 	private int m_cols;
-	// The number of mines in the game board.
-	private int m_mines;
-	// The number of flags currently up in the game board.
-	private int m_flags;
+	// The probability calculator. This holds the last probabilities to be
+	// worked out, which may be for an older version of the board while a
+	// new calculation is going on.
+	private Calculator m_calc;
 	
-	// True if and only if the player has won the game.
-	private boolean m_wongame;
-	// True if and only if the player has lost the game.
-	private boolean m_lostgame;
-	// True only during the period before a player's first click.
-	private boolean m_started;
+	// Probabilities are worked out on this background thread, from a snapshot
+	// of the board, so that a big board never freezes the window.
+	private ExecutorService m_executor;
+	// The calculation which is running (or waiting to run), and the flag
+	// which tells it to give up. Both are null when nothing is going on.
+	private Future<?> m_pending;
+	private AtomicBoolean m_cancel;
+	// Counts the calculations asked for, so that one which finishes after a
+	// newer one has been asked for is thrown away.
+	private int m_request;
+	// The version of the board the last calculation was asked for. If the
+	// board has changed since, the probabilities need working out again.
+	// Several changes in a row (like a chord) only need one calculation.
+	private long m_version;
+	// The probabilities for recently seen boards, so that going back to one
+	// of them costs nothing.
+	private ResultCache m_cache;
+	// Solved components of recent boards, so that a move only costs solving
+	// the components near it. This listens to the board, and forgets the
+	// components a move changes.
+	private ComponentCache m_components;
+	// Picks the engine which solves each component. Every calculation goes
+	// through it.
+	private EngineSelector m_selector;
 	
-	// The board the player can see.
-	private Board m_board;
-	// The field containing the mines.
-	private Minefield m_field;
-	// The probability calculator.
-	private Calculator m_calc;
+	// The number of boards whose probabilities are remembered.
+	private static final int CACHE_SIZE = 64;
+	// The number of solved components which are remembered.
+	private static final int COMPONENT_CACHE_SIZE = 1024;
+	// The number of milliseconds a calculation may take. Components which
+	// aren't solved by then are estimated, so that some answer always
+	// arrives in good time.
+	private static final long TIME_BUDGET = 1000;
 	
 	// The bar displaying the number of mines left and any notifications.
 	private JLabel m_statusbar;
@@ -60,33 +91,23 @@ public class Game extends JPanel {
 	 * with the desired amount of mines.
 	 */
 	public Game(int rows, int cols, int mines, JLabel status) {
-		// The number of rows must be greater than zero, it is set to one if
-		// otherwise.
-		m_rows = rows;
-		if (m_rows < 1) {
-			m_rows = 1;
-		}
-		
-		// The number of columns must be greater than zero, it is set to one if
-		// otherwise.
-		m_cols = cols;
-		if (m_cols < 1) {
-			m_cols = 1;
-		}
-		
-		// The number of mines must be non-negative, it is set to zero if
-		// otherwise.
-		m_mines = mines;
-		if (m_mines < 0) {
-			m_mines = 0;
-		}
-		// The number of mines must not be greater than the total number of
-		// squares on the board less nine (to allow room for the first click).
-		else if (m_mines > m_rows * m_cols - 9) {
-			m_mines = m_rows * m_cols - 9;
-		}
+		// The engine makes sure the dimensions and mines make sense.
+		m_engine = new GameEngine(rows, cols, mines);
+		m_rows = m_engine.rows();
+		m_cols = m_engine.cols();
 		
 		m_statusbar = status;
+		m_cache = new ResultCache(CACHE_SIZE);
+		m_components = new ComponentCache(COMPONENT_CACHE_SIZE);
+		m_engine.addListener(m_components);
+		m_selector = EngineSelector.standard();
+		m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "probability calculator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		setDoubleBuffered(true);
 		addMouseListener(new MinesAdapter());
 		newGame();
@@ -104,15 +125,7 @@ public class Game extends JPanel {
 	 * @return If the game has been won or not
 	 */
 	public boolean wonGame() {
-		for (int r = 0; r < m_rows; r++) {
-			for (int c = 0; c < m_cols; c++) {
-				if (m_field.get(r, c) == false && (!m_board.known(r,c))) {
-					return false;
-				}
-			}
-		}
-		
-		return true;
+		return m_engine.won();
 	}
 	
 	///////////////////////////////////////////////////////////////////////////
@@ -124,64 +137,44 @@ public class Game extends JPanel {
 	 * is not generated, as this cannot be done until the first click occurs.
 	 */
 	public void newGame() {
-		m_board = new Board(m_rows, m_cols, m_mines);
-		m_calc = new Calculator(m_board);
-		m_wongame = false;
-		m_lostgame = false;
-		m_started = false;
-		m_flags = 0;
-	}
-	
-	/**
-	 * Starts a game at the given row and column. Generates a minefield which
-	 * conforms to the first click.
-	 */
-	public void startGame(int r, int c) {
-		m_field = new Minefield(m_rows, m_cols, m_mines, r, c);
-		m_started = true;
+		m_engine.newGame();
+		cancelCalculation();
+		m_components.clear();
+		m_calc = m_selector.calculate(new Board(m_engine.board()));
+		m_version = m_engine.board().version();
 	}
 	
 	/**
 	 * Paints the game board into the application window.
 	 */
 	public void paint(Graphics g) {
+		Board board = m_engine.board();
 		
-		// Re-calculate probabilities
-		m_calc = new Calculator(m_board);
+		// Re-calculate probabilities if the board has changed. Until they
+		// are ready, the last ones to be worked out are shown.
+		if (board.version() != m_version) {
+			recalculate();
+		}
 		
-		// Display the number of mines left.
-		m_statusbar.setText("Mines Remaining: " + Integer.toString(m_mines-m_flags));
+		// Display the number of mines left, and whether the probabilities
+		// are still being worked out (or are only estimates).
+		String status = "Mines Remaining: " + Integer.toString(m_engine.mines_left());
+		if (m_pending != null) {
+			status += "    (computing...)";
+		}
+		else if (!m_calc.exact()) {
+			status += "    (estimated)";
+		}
+		m_statusbar.setText(status);
 		
-		// If the player has lost the game...
-		if (m_lostgame) {
-			// Reveal all of the squares.
-			for (int r = 0; r < m_rows; r++) {
-				for (int c = 0; c < m_cols; c++) {
-					// Unknown mined squares become mines.
-					if (m_field.get(r,c) == true && m_board.at(r,c) == Square.UNKNOWN) {
-						m_board.set(r,c,Square.MINE);
-					}
-					// Properly flagged squares become mines.
-					else if (m_field.get(r,c) == true && m_board.at(r,c) == Square.FLAG) {
-						m_board.set(r,c,Square.MINE);
-					}
-					// Improperly flagged squares become x-ed out flags.
-					else if (m_field.get(r,c) == false && m_board.at(r, c) == Square.FLAG) {
-						m_board.set(r,c,Square.WRONGFLAG);
-					}
-					// Unknown squares become the proper number
-					else if (m_board.at(r,c) == Square.UNKNOWN) {
-						int m = m_field.minesSurrounding(r,c);
-						m_board.set(r,c,Square.toSquare(m));
-					}
-				}
-			}		
-			// Set the losing message.
+		// If the player has lost the game (the engine has already revealed all
+		// of the squares), set the losing message.
+		if (m_engine.lost()) {
 			m_statusbar.setText("You lose. Sorry bro.");
 		}
 		
 		// If the player has won the game...
-		if (m_wongame) {
+		if (m_engine.won()) {
 			m_statusbar.setText("VICTORY!");
 		}
 		
@@ -189,11 +182,11 @@ public class Game extends JPanel {
 		for (int r = 0; r < m_rows; r++) {
 			for (int c = 0; c < m_cols; c++) {
 				// Drawing an empty square.
-				if (m_board.at(r, c) == Square.UNKNOWN) { 
+				if (board.at(r, c) == Square.UNKNOWN) { 
 					g.setColor(Color.BLUE);
 					g.fillRect(c*CELL_SIZE, r*CELL_SIZE, CELL_SIZE, CELL_SIZE);
 					
-					if (m_calc.prob(r,c) < 0.001 || m_started == false) {
+					if (m_calc.prob(r,c) < 0.001 || !m_engine.started()) {
 						g.setColor(Color.WHITE);
 					}
 					else if (m_calc.prob(r, c) < 0.25) {
@@ -205,13 +198,15 @@ public class Game extends JPanel {
 					else {
 						g.setColor(Color.RED);
 					}
-					Font f = new Font("Arial", Font.BOLD, 10);
+					// Estimated probabilities are shown in italics.
+					int style = m_calc.exact(r, c) ? Font.BOLD : Font.BOLD | Font.ITALIC;
+					Font f = new Font("Arial", style, 10);
 					g.setFont(f);
 					
 					// If the game hasn't started yet, every square has a zero
 					// probability of being a mine, as the first click cannot
 					// make you lose the game.
-					if (m_started == false) {
+					if (!m_engine.started()) {
 						g.drawString("0.000", c * CELL_SIZE + 4, r * CELL_SIZE + CELL_SIZE / 2 + 6);
 					}
 					else {
@@ -219,15 +214,15 @@ public class Game extends JPanel {
 					}
 				}
 				// Drawing a flag.
-				else if (m_board.at(r, c) == Square.FLAG) {
+				else if (board.at(r, c) == Square.FLAG) {
 					drawFlag(r, c, g);
 				}
 				// Drawing a mine (once game has been lost).
-				else if (m_board.at(r, c) == Square.MINE) {
+				else if (board.at(r, c) == Square.MINE) {
 					drawMine(r, c, g);
 				}
 				// Drawing a flag in the wrong place (once game has been lost).
-				else if (m_board.at(r,c) == Square.WRONGFLAG) {
+				else if (board.at(r,c) == Square.WRONGFLAG) {
 					drawWrongFlag(r, c, g);
 				}
 				// Drawing a known square.
@@ -238,7 +233,7 @@ public class Game extends JPanel {
 					Font f = new Font("Arial", Font.BOLD, 20);
 					g.setFont(f);
 					
-					switch (m_board.at(r,c)) {
+					switch (board.at(r,c)) {
 						case EMPTY: break;
 						case ONE:   g.setColor(Color.BLUE);
 								    drawNumber(r, c, "1", g);
@@ -342,49 +337,7 @@ public class Game extends JPanel {
 	 * @return Whether or not we need to repaint the grid
 	 */
 	public boolean clickSquare(int r, int c) {
-		
-		// If the square is out-of-bounds, do nothing.
-		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
-			return false;
-		}
-		
-		// If we're waiting to start a new game, start the game with this click
-		// as the first one.
-		if (m_started == false) {
-			startGame(r, c);
-		}
-		
-		// If we click on a known square, do nothing.
-		if (m_board.known(r, c) || m_board.at(r, c) == Square.FLAG) {
-			return false;
-		}
-		// If we click on a mine, game over.
-		if (m_field.get(r, c)) {
-			m_lostgame = true;
-			return true;
-		}
-			
-		// Otherwise, reveal the square.
-		int m = m_field.minesSurrounding(r, c);
-		m_board.set(r, c, Square.toSquare(m));
-		
-		// If the square is empty, also click surrounding squares.
-		if (m == 0) {
-			clickSquare(r-1,c-1);
-			clickSquare(r-1,c);
-			clickSquare(r-1,c+1);
-			clickSquare(r,c-1);
-			clickSquare(r,c+1);
-			clickSquare(r+1,c-1);
-			clickSquare(r+1,c);
-			clickSquare(r+1,c+1);
-		}
-		
-		// See if we won the game.
-		m_wongame = wonGame();
-		
-		//Repaint the board.
-		return true;
+		return m_engine.reveal(r, c);
 	}
 	
 	/**
@@ -396,25 +349,99 @@ public class Game extends JPanel {
 	 * @return Whether or not to repaint the board
 	 */
 	public boolean rightClickSquare(int r, int c) {
-		// If the square is out-of-bounds, do nothing.
-		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
-			return false;
+		return m_engine.flag(r, c);
+	}
+	
+	/**
+	 * Performs the actions necessary when double clicking on a number:
+	 * revealing the squares around it, if it has the right number of flags
+	 * around it.
+	 * 
+	 * @param r The row of the clicked square
+	 * @param c The column of the clicked square
+	 * @return Whether or not to repaint the board
+	 */
+	public boolean chordSquare(int r, int c) {
+		return m_engine.chord(r, c);
+	}
+	
+	/**
+	 * Starts working out the probabilities for the board as it is now, on the
+	 * background thread, unless they are already in the cache. Any
+	 * calculation already going on is given up on, as its answer would be
+	 * out of date before it arrived.
+	 */
+	private void recalculate() {
+		cancelCalculation();
+		m_version = m_engine.board().version();
+		
+		// The board may look just like one we have seen before.
+		Calculator cached = m_cache.get(m_engine.board());
+		if (cached != null) {
+			m_calc = cached;
+			return;
 		}
 		
-		// If we click on an unknown square, flag it.
-		if (m_board.at(r, c) == Square.UNKNOWN) {
-			m_board.set(r, c, Square.FLAG);
-			m_flags++;
-			return true;
+		final int request = m_request;
+		final Board snapshot = new Board(m_engine.board());
+		final AtomicBoolean cancel = new AtomicBoolean(false);
+		m_cancel = cancel;
+		m_pending = m_executor.submit(new Runnable() {
+			public void run() {
+				// A calculation which has already been cancelled need not
+				// even start.
+				if (cancel.get()) {
+					return;
+				}
+				final Calculator calc;
+				try {
+					long deadline = System.nanoTime() + TIME_BUDGET * 1000000L;
+					calc = m_selector.calculate(snapshot, m_components, cancel, deadline);
+				}
+				catch (CancellationException e) {
+					return;
+				}
+				
+				// Hand the answer back to the Swing thread.
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						finishCalculation(request, calc);
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Called on the Swing thread when a calculation finishes. The answer is
+	 * cached either way (unless it is only an estimate), but only shown if no
+	 * newer calculation has been asked for since.
+	 */
+	private void finishCalculation(int request, Calculator calc) {
+		if (calc.exact()) {
+			m_cache.put(calc);
 		}
-		// If we click on a flagged square, un-flag it.
-		else if (m_board.at(r, c) == Square.FLAG) {
-			m_board.set(r, c, Square.UNKNOWN);
-			m_flags--;
-			return true;
+		if (request != m_request) {
+			return;
+		}
+		m_calc = calc;
+		m_pending = null;
+		m_cancel = null;
+		repaint();
+	}
+	
+	/**
+	 * Gives up on any calculation which is going on, or waiting to start.
+	 * Its answer will be thrown away if it arrives anyway.
+	 */
+	private void cancelCalculation() {
+		if (m_pending != null) {
+			m_cancel.set(true);
+			m_pending.cancel(false);
+			m_pending = null;
+			m_cancel = null;
 		}
-		// If we click on a known square, do nothing.
-		return false;
+		m_request++;
 	}
 	
 	/**
@@ -429,7 +456,7 @@ public class Game extends JPanel {
 			
 			// If the game is over, then clicking anywhere on the grid should
 			// start a new game.
-			if (m_lostgame || m_wongame) {
+			if (m_engine.over()) {
 				newGame();
 				repaint();
 				return;
@@ -475,44 +502,10 @@ public class Game extends JPanel {
 				int c_col = x / CELL_SIZE;
 				int c_row = y / CELL_SIZE;
 				
-				// If the square is unknown or flagged, do nothing.
-				if (m_board.at(c_row,c_col) == Square.UNKNOWN ||
-					m_board.at(c_row,c_col) == Square.FLAG) {
-					return;
-				}
-				
-				// Count number of flags
-				int flag_count = 0;
-				if (m_board.at(c_row-1,c_col-1) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row-1,c_col) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row-1,c_col+1) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row,c_col-1) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row,c_col+1) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row+1,c_col-1) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row+1,c_col) == Square.FLAG) {flag_count++;}
-				if (m_board.at(c_row+1,c_col+1) == Square.FLAG) {flag_count++;}
-				
-				// Only reveal the surrounding squares if the number of flags
-				// surrounding the click location add up to the number of mines
-				// surrounding the click location.
-				if (flag_count != Square.toInt(m_board.at(c_row,c_col))) {
-					return;
-				}
-				
+				// Reveal all of the surrounding squares, if the flags allow it.
 				boolean rep = false;
-				
-				// Reveal all of the surrounding squares.
 				if (x < m_cols * CELL_SIZE && y < m_rows * CELL_SIZE) {
-					boolean rep1 = clickSquare(c_row-1,c_col-1);
-					boolean rep2 = clickSquare(c_row-1,c_col);
-					boolean rep3 = clickSquare(c_row-1,c_col+1);
-					boolean rep4 = clickSquare(c_row,c_col-1);
-					boolean rep5 = clickSquare(c_row,c_col+1);
-					boolean rep6 = clickSquare(c_row+1,c_col-1);
-					boolean rep7 = clickSquare(c_row+1,c_col);
-					boolean rep8 = clickSquare(c_row+1,c_col+1);
-					
-					rep = (rep1 || rep2 || rep3 || rep4 || rep5 || rep6 || rep7 || rep8);
+					rep = chordSquare(c_row, c_col);
 				}
 				
 				// Repaint the grid if anything changed.
@@ -0,0 +1,405 @@
+package probcalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The rules of a minesweeper game, with nothing to do with showing it. The
+ * engine keeps the board the player can see and the minefield behind it, and
+ * carries out the player's moves on them: revealing a square, chording on a
+ * number, and flagging. The first reveal of each game generates the field,
+ * so that it is never a mine.
+ *
+ * Nothing here needs a window, so games can be played by a program, in
+ * batches, as fast as the moves can be made. Game is a view on top of it.
+ */
+public class GameEngine {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The number of rows in the game board.
+	private int m_rows;
+	// The number of columns in the game board.
+	private int m_cols;
+	// The number of mines in the game board.
+	private int m_mines;
+
+	// True if and only if the player has won the game.
+	private boolean m_wongame;
+	// True if and only if the player has lost the game.
+	private boolean m_lostgame;
+	// False only during the period before a player's first click.
+	private boolean m_started;
+
+	// The board the player can see.
+	private Board m_board;
+	// The field containing the mines. Null until the first click.
+	private Minefield m_field;
+
+	// Where the random numbers for the minefields come from. Each game gets
+	// a generator split off from this one, so a whole run of games can be
+	// played again from the same seed. If this is null, every field is
+	// different.
+	private SplittableRandom m_random;
+
+	// Everything which is told when a square changes, on every new board.
+	private ArrayList<BoardListener> m_listeners = new ArrayList<BoardListener>();
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Sets up a minesweeper game of the given dimensions
+	 * with the desired amount of mines, placed differently every game.
+	 */
+	public GameEngine(int rows, int cols, int mines) {
+		this(rows, cols, mines, null);
+	}
+
+	/**
+	 * As above, but with the mines of every game placed using random numbers
+	 * split off from the given generator (or differently every game if it is
+	 * null). The same seed always gives the same run of minefields.
+	 */
+	public GameEngine(int rows, int cols, int mines, SplittableRandom random) {
+		// The number of rows must be greater than zero, it is set to one if
+		// otherwise.
+		m_rows = rows;
+		if (m_rows < 1) {
+			m_rows = 1;
+		}
+
+		// The number of columns must be greater than zero, it is set to one if
+		// otherwise.
+		m_cols = cols;
+		if (m_cols < 1) {
+			m_cols = 1;
+		}
+
+		// The number of mines must not be greater than the total number of
+		// squares on the board less nine (to allow room for the first click).
+		m_mines = mines;
+		if (m_mines > m_rows * m_cols - 9) {
+			m_mines = m_rows * m_cols - 9;
+		}
+		// The number of mines must also be non-negative, it is set to zero if
+		// otherwise.
+		if (m_mines < 0) {
+			m_mines = 0;
+		}
+
+		m_random = random;
+		newGame();
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the number of rows in the board.
+	 */
+	public int rows() {
+		return m_rows;
+	}
+
+	/**
+	 * Returns the number of columns in the board.
+	 */
+	public int cols() {
+		return m_cols;
+	}
+
+	/**
+	 * Returns the number of mines in the game.
+	 */
+	public int mines() {
+		return m_mines;
+	}
+
+	/**
+	 * Returns the number of mines left to be found: the mines less the flags
+	 * (which may be wrong, or even too many).
+	 */
+	public int mines_left() {
+		return m_board.mines_left();
+	}
+
+	/**
+	 * Returns the board the player can see. It changes as moves are made, and
+	 * is replaced by a new one for every game.
+	 */
+	public Board board() {
+		return m_board;
+	}
+
+	/**
+	 * Returns the field containing the mines, or null if the first square
+	 * hasn't been revealed yet.
+	 */
+	public Minefield field() {
+		return m_field;
+	}
+
+	/**
+	 * Returns true once the first square has been revealed, and the mines
+	 * have been placed.
+	 */
+	public boolean started() {
+		return m_started;
+	}
+
+	/**
+	 * Returns true if the game has been won. This happens when all of the
+	 * squares which are not mines are revealed. Note that flagging all of the
+	 * mined squares is not good enough.
+	 */
+	public boolean won() {
+		return m_wongame;
+	}
+
+	/**
+	 * Returns true if the game has been lost, by revealing a mine.
+	 */
+	public boolean lost() {
+		return m_lostgame;
+	}
+
+	/**
+	 * Returns true if the game has been either won or lost. No more moves
+	 * can be made until a new game is started.
+	 */
+	public boolean over() {
+		return m_wongame || m_lostgame;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Sets up a new game with the same dimensions. Note that the minefield
+	 * is not generated, as this cannot be done until the first click occurs.
+	 */
+	public void newGame() {
+		m_board = new Board(m_rows, m_cols, m_mines);
+		for (BoardListener listener : m_listeners) {
+			m_board.addListener(listener);
+		}
+		m_field = null;
+		m_wongame = false;
+		m_lostgame = false;
+		m_started = false;
+	}
+
+	/**
+	 * Starts a game at the given row and column. Generates a minefield which
+	 * conforms to the first click. This happens by itself on the first
+	 * reveal.
+	 */
+	public void startGame(int r, int c) {
+		if (m_random == null) {
+			m_field = new Minefield(m_rows, m_cols, m_mines, r, c);
+		}
+		else {
+			m_field = new Minefield(m_rows, m_cols, m_mines, r, c, m_random.split());
+		}
+		m_started = true;
+	}
+
+	/**
+	 * Reveals the square at (r,c). This may win or lose the game. An empty
+	 * square reveals the squares around it, and so on through the opening
+	 * it is in, up to any flagged squares.
+	 *
+	 * @return Whether or not anything changed
+	 */
+	public boolean reveal(int r, int c) {
+
+		// If the square is out-of-bounds, or the game is over, do nothing.
+		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols || over()) {
+			return false;
+		}
+
+		// If we're waiting to start a new game, start the game with this click
+		// as the first one.
+		if (m_started == false) {
+			startGame(r, c);
+		}
+
+		// If we click on a known square, do nothing.
+		if (m_board.known(r, c) || m_board.at(r, c) == Square.FLAG) {
+			return false;
+		}
+		// If we click on a mine, game over.
+		if (m_field.get(r, c)) {
+			m_lostgame = true;
+			showMines();
+			return true;
+		}
+
+		// Otherwise, reveal the square.
+		int m = m_field.minesSurrounding(r, c);
+		m_board.set(r, c, Square.toSquare(m));
+
+		// If the square is empty, reveal the squares around it too, and
+		// carry on from any of them which are empty as well. Flags stop
+		// this, even wrong ones, so it can stay short of the whole opening.
+		if (m == 0) {
+			cascade(r, c);
+		}
+
+		// See if we won the game. The board keeps count of the safe squares
+		// still covered, so there is no need to look at every square.
+		m_wongame = (m_board.safe_left() == 0);
+		return true;
+	}
+
+	/**
+	 * Chords on the number at (r,c): if it has as many flags around it as its
+	 * number, every other square around it is revealed. This loses the game
+	 * if one of the flags is wrong.
+	 *
+	 * @return Whether or not anything changed
+	 */
+	public boolean chord(int r, int c) {
+		// Only numbers can be chorded on.
+		if (!m_board.known(r, c) || over()) {
+			return false;
+		}
+
+		// Only reveal the surrounding squares if the number of flags
+		// surrounding the square add up to the number of mines surrounding
+		// it.
+		int flag_count = 0;
+		for (int dr = -1; dr <= 1; dr++) {
+			for (int dc = -1; dc <= 1; dc++) {
+				if (m_board.at(r + dr, c + dc) == Square.FLAG) {
+					flag_count++;
+				}
+			}
+		}
+		if (flag_count != Square.toInt(m_board.at(r, c))) {
+			return false;
+		}
+
+		// Reveal all of the surrounding squares.
+		boolean changed = false;
+		for (int dr = -1; dr <= 1; dr++) {
+			for (int dc = -1; dc <= 1; dc++) {
+				if (reveal(r + dr, c + dc)) {
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Flags the square at (r,c) if it is unknown, or un-flags it if it is
+	 * flagged. Known squares are left alone.
+	 *
+	 * @return Whether or not anything changed
+	 */
+	public boolean flag(int r, int c) {
+		// If the square is out-of-bounds, or the game is over, do nothing.
+		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols || over()) {
+			return false;
+		}
+
+		// If we click on an unknown square, flag it.
+		if (m_board.at(r, c) == Square.UNKNOWN) {
+			m_board.set(r, c, Square.FLAG);
+			return true;
+		}
+		// If we click on a flagged square, un-flag it.
+		else if (m_board.at(r, c) == Square.FLAG) {
+			m_board.set(r, c, Square.UNKNOWN);
+			return true;
+		}
+		// If we click on a known square, do nothing.
+		return false;
+	}
+
+	/**
+	 * Asks for the given listener to be told whenever a square changes, on
+	 * this game's board and on the boards of all the games after it.
+	 */
+	public void addListener(BoardListener listener) {
+		m_listeners.add(listener);
+		m_board.addListener(listener);
+	}
+
+	/**
+	 * Stops telling the given listener about changes.
+	 */
+	public void removeListener(BoardListener listener) {
+		m_listeners.remove(listener);
+		m_board.removeListener(listener);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	//							PRIVATE FUNCTIONS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Reveals the squares around the empty square at (r,c), and around each
+	 * of those which is empty in turn, leaving flagged squares alone. None
+	 * of them can be a mine. This is done with a stack of squares still to
+	 * go, rather than by recursion, as an opening can be huge.
+	 */
+	private void cascade(int r, int c) {
+		int[] stack = new int[16];
+		int size = 0;
+		stack[size++] = r * m_cols + c;
+		while (size > 0) {
+			int square = stack[--size];
+			int row = square / m_cols;
+			int col = square % m_cols;
+			for (int dr = -1; dr <= 1; dr++) {
+				for (int dc = -1; dc <= 1; dc++) {
+					int nr = row + dr;
+					int nc = col + dc;
+					if (nr < 0 || nc < 0 || nr >= m_rows || nc >= m_cols ||
+						m_board.at(nr, nc) != Square.UNKNOWN) {
+						continue;
+					}
+					int m = m_field.minesSurrounding(nr, nc);
+					m_board.set(nr, nc, Square.toSquare(m));
+					if (m == 0) {
+						if (size == stack.length) {
+							stack = Arrays.copyOf(stack, 2 * size);
+						}
+						stack[size++] = nr * m_cols + nc;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reveals every square once the game has been lost.
+	 */
+	private void showMines() {
+		for (int r = 0; r < m_rows; r++) {
+			for (int c = 0; c < m_cols; c++) {
+				// Unknown or properly flagged mined squares become mines.
+				if (m_field.get(r, c)) {
+					m_board.set(r, c, Square.MINE);
+				}
+				// Improperly flagged squares become x-ed out flags.
+				else if (m_board.at(r, c) == Square.FLAG) {
+					m_board.set(r, c, Square.WRONGFLAG);
+				}
+				// Unknown squares become the proper number.
+				else if (m_board.at(r, c) == Square.UNKNOWN) {
+					m_board.set(r, c, Square.toSquare(m_field.minesSurrounding(r, c)));
+				}
+			}
+		}
+	}
+}
@@ -1,102 +1,366 @@
 package probcalc;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Used to represent a system of linear equations. The functionality of this
  * class is rather limited to what is required of the Minesweeper application,
  * so I would not recommend using this class for your daily linear algebra
  * tasks.
- * 
- * Also... all of the contents are Doubles because the end result of this
- * application involves probabilities between 0 and 1. If you wish to use
- * another data type, I would suggest a more generic class.
+ *
+ * All of the contents are whole numbers. The equations of a minesweeper board
+ * only ever have whole coefficients, and the system is reduced without ever
+ * dividing (fraction-free elimination), so no rounding error can creep in.
+ * Coefficients are kept in longs, and if one of those would overflow, the
+ * system is reduced again using BigIntegers instead.
+ *
+ * Each equation in a minesweeper system only mentions the (at most eight)
+ * squares around a number, so the rows are stored sparsely: only their
+ * non-zero coefficients are kept.
+ *
+ * Once a system has been reduced, it can be kept up to date as the board
+ * changes, rather than reduced again from nothing: new equations can be
+ * folded in, unknowns can be fixed to a value, and the rows of another
+ * reduced system can be brought in. Each of these only touches the rows
+ * which actually use the columns involved.
  */
 public class LinearSystem {
-	
+
 	///////////////////////////////////////////////////////////////////////////
 	//								MEMBERS									 //
 	///////////////////////////////////////////////////////////////////////////
-	
-	/**
-	 * Class for containing a single equation (row) in our system (matrix).
-	 * 
-	 * Contains some wrapper functions for the basic ArrayList functions that
-	 * are required of the LinearSystem class. But also allows for some row
-	 * operations that come in handy during row-reduction.
-	 */
-	public class MatRow {
-		// The row's contents.
-		ArrayList<Double> m_contents; 
-		
+
+	/**
+	 * A reduced system, compiled down to just what is needed to check guesses
+	 * for the free unknowns (the 'u-variables') as quickly as possible.
+	 *
+	 * Every pivot row of a reduced system reads a * x_p + (sum of b * u) = k,
+	 * where the u's are u-variables. The plan keeps, for each pivot row, the
+	 * pivot x_p, its coefficient a, the solution k, and the (u-variable, b)
+	 * pairs, so a guess can be checked by walking the non-zero coefficients
+	 * once, without allocating anything.
+	 */
+	public static class Plan {
+		// The unknown each u-variable stands for.
+		int[] m_uvars;
+
+		// For the p'th pivot row: the unknown it solves for, the coefficient
+		// of that unknown, and the row's solution.
+		int[] m_pivots;
+		long[] m_coef;
+		long[] m_const;
+
+		// The other terms of the p'th pivot row are entries m_start[p] to
+		// m_start[p + 1] - 1 of m_dep (which u-variable) and m_depcoef (its
+		// coefficient).
+		int[] m_start;
+		int[] m_dep;
+		long[] m_depcoef;
+
+		// If the numbers in some row could overflow a long while a guess is
+		// being checked, the coefficients and solutions are kept in these
+		// instead (and they are null otherwise).
+		BigInteger[] m_bigcoef;
+		BigInteger[] m_bigconst;
+		BigInteger[] m_bigdepcoef;
+
+		// The same terms, listed by u-variable instead: the terms with the
+		// i'th u-variable are entries m_ustart[i] to m_ustart[i + 1] - 1 of
+		// m_upivot (which pivot row) and m_ucoef (its coefficient). Only
+		// made when the numbers fit in longs.
+		int[] m_ustart;
+		int[] m_upivot;
+		long[] m_ucoef;
+
+		// Where each unknown can be found: m_slot[c] is p if unknown c is the
+		// p'th pivot, or -(i + 1) if it is the i'th u-variable.
+		int[] m_slot;
+
+		// False if the system has no solutions at all.
+		boolean m_consistent;
+
+		/**
+		 * Returns the number of u-variables.
+		 */
+		public int free() {
+			return m_uvars.length;
+		}
+
+		/**
+		 * Returns the number of unknowns in the system.
+		 */
+		public int unknowns() {
+			return m_slot.length;
+		}
+
+		/**
+		 * Returns the unknown which the i'th u-variable stands for.
+		 */
+		public int freeVar(int i) {
+			return m_uvars[i];
+		}
+
+		/**
+		 * Returns a new Walk through every guess for the u-variables.
+		 */
+		public Walk walk() {
+			return new Walk(this, 0, 0);
+		}
+
+		/**
+		 * Returns a new Walk through every guess for the u-variables in which
+		 * the first 'fixed' u-variables are held at the given prefix (bit i of
+		 * the prefix is the value of u-variable i). The walks for every
+		 * prefix of the same length visit every guess exactly once between
+		 * them, so they can be handed out to different threads.
+		 */
+		public Walk walk(int fixed, long prefix) {
+			return new Walk(this, fixed, prefix);
+		}
+
 		/**
-		 * Default Constructor: Creates a row of length 0.
+		 * Works out every unknown from a guess for the u-variables.
+		 *
+		 * @param uvals The guess: a 0 or 1 for each u-variable
+		 * @param values Filled in with the value (0 or 1) of every unknown
+		 * @return The number of unknowns which are 1, or -1 if the guess makes
+		 * 		   some unknown anything other than a 0 or a 1
 		 */
-		public MatRow() {
-			m_contents = new ArrayList<Double>();
+		public int evaluate(int[] uvals, int[] values) {
+			if (!m_consistent) {
+				return -1;
+			}
+
+			int ones = 0;
+			for (int i = 0; i < m_uvars.length; i++) {
+				values[m_uvars[i]] = uvals[i];
+				ones += uvals[i];
+			}
+
+			for (int p = 0; p < m_pivots.length; p++) {
+				int value = pivotValue(p, uvals);
+				if (value == -1) {
+					return -1;
+				}
+				values[m_pivots[p]] = value;
+				ones += value;
+			}
+
+			return ones;
 		}
-		
+
 		/**
-		 * Constructor given size: creates a row filled with that many '0's,
-		 * as this is the default behavior for ArrayList.
+		 * Works out a single unknown from a guess for the u-variables.
+		 * Returns its value, or -1 if it is anything other than a 0 or a 1.
 		 */
-		public MatRow(int size) {
-			m_contents = new ArrayList<Double>(size);
+		public int valueOf(int unknown, int[] uvals) {
+			if (!m_consistent) {
+				return -1;
+			}
+			if (m_slot[unknown] < 0) {
+				return uvals[-m_slot[unknown] - 1];
+			}
+			return pivotValue(m_slot[unknown], uvals);
 		}
-		
+
+		/**
+		 * Returns the value of the p'th pivot given a guess for the
+		 * u-variables, or -1 if it is anything other than a 0 or a 1. The
+		 * pivot's term has to make up the difference between the solution
+		 * and the other terms, which must be either nothing (a 0) or the
+		 * pivot's coefficient (a 1).
+		 */
+		private int pivotValue(int p, int[] uvals) {
+			if (m_bigcoef == null) {
+				long numerator = m_const[p];
+				for (int d = m_start[p]; d < m_start[p + 1]; d++) {
+					if (uvals[m_dep[d]] == 1) {
+						numerator -= m_depcoef[d];
+					}
+				}
+				return (numerator == 0) ? 0 : (numerator == m_coef[p]) ? 1 : -1;
+			}
+
+			BigInteger numerator = m_bigconst[p];
+			for (int d = m_start[p]; d < m_start[p + 1]; d++) {
+				if (uvals[m_dep[d]] == 1) {
+					numerator = numerator.subtract(m_bigdepcoef[d]);
+				}
+			}
+			return (numerator.signum() == 0) ? 0 : numerator.equals(m_bigcoef[p]) ? 1 : -1;
+		}
+	}
+
+	/**
+	 * Walks through every possible guess for the u-variables of a Plan, in
+	 * Gray code order: each guess differs from the one before it in just one
+	 * u-variable. Only the pivot rows which use that u-variable need to be
+	 * looked at again, and a running count is kept of how many pivots are
+	 * not a 0 or a 1. A guess is valid when that count is zero.
+	 *
+	 * The order is generated with "focus pointers" (Knuth's Algorithm L), so
+	 * there is no counter, and no limit on the number of u-variables.
+	 */
+	public static class Walk {
+		// The plan being walked.
+		Plan m_plan;
+
+		// The current guess, as a bitmask with one bit per u-variable, and
+		// as an array (which the plan needs if its numbers are BigIntegers).
+		long[] m_bits;
+		int[] m_uvals;
+
+		// The number of u-variables held fixed for the whole walk. These are
+		// the first m_fixed u-variables, and are never flipped.
+		int m_fixed;
+
+		// The focus pointers over the u-variables which are not fixed.
+		// m_focus[0] is the next one to flip (counting from m_fixed).
+		int[] m_focus;
+
+		// For each pivot row, its solution minus the terms of the u-variables
+		// which are currently 1. The pivot is 0 if this is 0, and 1 if it is
+		// the pivot's coefficient.
+		long[] m_numerator;
+
+		// The number of pivots which are neither 0 nor 1, the number which
+		// are 1, and the number of u-variables which are 1.
+		int m_bad;
+		int m_pivotones;
+		int m_freeones;
+
+		// Whether the walk has started, and whether it has finished.
+		boolean m_started;
+		boolean m_done;
+
 		/**
-		 * Constructor given contents: creates a row with the specified
-		 * contents.
+		 * Starts a walk at the guess where the first 'fixed' u-variables
+		 * match the prefix, and every other u-variable is 0.
 		 */
-		public MatRow(ArrayList<Double> list) {
-			m_contents = list;
+		Walk(Plan plan, int fixed, long prefix) {
+			m_plan = plan;
+			int n = plan.free();
+			m_bits = new long[(n + 63) / 64];
+			m_uvals = new int[n];
+			m_fixed = fixed;
+			m_focus = new int[n - fixed + 1];
+			for (int j = 0; j <= n - fixed; j++) {
+				m_focus[j] = j;
+			}
+
+			if (plan.m_bigcoef == null) {
+				m_numerator = plan.m_const.clone();
+				for (int p = 0; p < m_numerator.length; p++) {
+					int value = state(p);
+					if (value == -1) {
+						m_bad++;
+					}
+					m_pivotones += Math.max(value, 0);
+				}
+			}
+			for (int i = 0; i < fixed; i++) {
+				if ((prefix & (1L << i)) != 0) {
+					flip(i);
+				}
+			}
 		}
-		
+
 		/**
-		 * Matrix row multiplication.
-		 * 
-		 * Returns the row resulting from multiplying every element of this row
-		 * by constant k.
+		 * Moves on to the next guess. The first call moves to the first
+		 * guess. Returns false once every guess has been visited.
 		 */
-		public MatRow mult(double k) {
-			ArrayList<Double> temp = new ArrayList<Double>();
-			for (int i = 0; i < m_contents.size(); i++) {
-				temp.add(m_contents.get(i) * k);
+		public boolean next() {
+			if (!m_started) {
+				m_started = true;
+				return true;
 			}
-			return new MatRow(temp);
+			if (m_done) {
+				return false;
+			}
+
+			int j = m_focus[0];
+			m_focus[0] = 0;
+			if (j == m_uvals.length - m_fixed) {
+				m_done = true;
+				return false;
+			}
+			m_focus[j] = m_focus[j + 1];
+			m_focus[j + 1] = j + 1;
+			flip(m_fixed + j);
+			return true;
 		}
-		
+
 		/**
-		 * Matrix row addition.
-		 * 
-		 * Returns the row resulting from adding every element in this row to
-		 * its counterpart in the 'other' row.
+		 * Returns the number of unknowns which are 1 under the current guess,
+		 * or -1 if the guess makes some unknown anything other than a 0 or a
+		 * 1. If the guess is valid, and 'values' is not null, it is filled
+		 * in with the value of every unknown.
 		 */
-		public MatRow add(MatRow other) {
-			ArrayList<Double> temp = new ArrayList<Double>();
-			for(int i = 0; i < m_contents.size(); i++) {
-				temp.add(m_contents.get(i) + other.m_contents.get(i));
+		public int mines(int[] values) {
+			if (!m_plan.m_consistent) {
+				return -1;
+			}
+			if (m_numerator == null) {
+				return m_plan.evaluate(m_uvals, (values != null) ? values : new int[m_plan.m_slot.length]);
+			}
+			if (m_bad > 0) {
+				return -1;
 			}
-			return new MatRow(temp);
+
+			if (values != null) {
+				for (int i = 0; i < m_uvals.length; i++) {
+					values[m_plan.m_uvars[i]] = m_uvals[i];
+				}
+				for (int p = 0; p < m_numerator.length; p++) {
+					values[m_plan.m_pivots[p]] = state(p);
+				}
+			}
+			return m_freeones + m_pivotones;
 		}
-		
+
 		/**
-		 * Shortcut for performing row addition and multiplication at the same
-		 * time.
-		 * 
-		 * Returns the row: <this row> + (k * <'other' row>)
+		 * Flips the i'th u-variable, and updates the pivots which use it.
 		 */
-		public MatRow addmult(double k, MatRow other) {
-			return add(other.mult(k));
+		private void flip(int i) {
+			m_bits[i >>> 6] ^= 1L << (i & 63);
+			boolean on = (m_bits[i >>> 6] & (1L << (i & 63))) != 0;
+			m_uvals[i] = on ? 1 : 0;
+			m_freeones += on ? 1 : -1;
+
+			if (m_numerator == null) {
+				return;
+			}
+			for (int d = m_plan.m_ustart[i]; d < m_plan.m_ustart[i + 1]; d++) {
+				int p = m_plan.m_upivot[d];
+				int before = state(p);
+				if (on) {
+					m_numerator[p] -= m_plan.m_ucoef[d];
+				}
+				else {
+					m_numerator[p] += m_plan.m_ucoef[d];
+				}
+				int after = state(p);
+
+				if (before == -1) {
+					m_bad--;
+				}
+				if (after == -1) {
+					m_bad++;
+				}
+				m_pivotones += Math.max(after, 0) - Math.max(before, 0);
+			}
 		}
-		
+
 		/**
-		 * Returns the contents of the row at index 'n'
-		 * 
-		 * Throws an array out of bounds exception if the index is invalid.
+		 * Returns the value of the p'th pivot under the current guess, or -1
+		 * if it is neither 0 nor 1.
 		 */
-		public double get(int n) {
-			return m_contents.get(n);
+		private int state(int p) {
+			long numerator = m_numerator[p];
+			return (numerator == 0) ? 0 : (numerator == m_plan.m_coef[p]) ? 1 : -1;
 		}
 	}
 
@@ -104,276 +368,1245 @@ public class LinearSystem {
 	// of columns is equal to (m_unknowns + 1) due to the solution column.
 	int m_unknowns;
 	int m_equations;
-	
-	// The contents of our matrix.
-	ArrayList<MatRow> m_mat;
-	
-	
+
+	// The contents of our matrix. Row r has m_len[r] non-zero coefficients,
+	// the k'th of which is m_val[r][k], in column m_idx[r][k]. The columns
+	// of a row are kept in increasing order. The solution column is kept
+	// separately, in m_rhs.
+	int[][] m_idx;
+	long[][] m_val;
+	int[] m_len;
+	long[] m_rhs;
+
+	// If a coefficient grows too big for a long while the system is being
+	// reduced, the reduction is started again using BigIntegers. From then
+	// on, m_big is true, and the contents live in m_bigval and m_bigrhs
+	// rather than m_val and m_rhs.
+	boolean m_big;
+	BigInteger[][] m_bigval;
+	BigInteger[] m_bigrhs;
+
+	// The number of equations added to the system so far. Rows which have
+	// not been added yet are all zeros.
+	int m_added;
+
+	// True once the system has been reduced (and kept reduced since).
+	boolean m_reduced;
+
+	// Once the system has been reduced, m_pivot[r] is the column of row r's
+	// pivot (or -1 if it has none), and m_pivotrow[c] is the row whose pivot
+	// is in column c (or -1 if column c has no pivot).
+	int[] m_pivot;
+	int[] m_pivotrow;
+
+	// Used during reduction. m_colrows[c] lists the rows which may have a
+	// non-zero coefficient in column c. Entries go stale when a coefficient
+	// is eliminated, so they are checked before being used. m_colcount[c] is
+	// the number of rows without a pivot yet which use column c.
+	int[][] m_colrows;
+	int[] m_collen;
+	int[] m_colcount;
+
+	// Also used during reduction. The rows without a pivot yet are kept in
+	// lists by their length: m_bylen[n] is the first row of length n (or
+	// -1), and m_nextrow[r] and m_prevrow[r] link row r to the others of
+	// its length. No list shorter than m_shortest has anything in it.
+	int[] m_bylen;
+	int[] m_nextrow;
+	int[] m_prevrow;
+	int m_shortest;
+
+	// Scratch space used when combining two rows.
+	int[] m_scratchidx;
+	long[] m_scratchval;
+	BigInteger[] m_scratchbig;
+
+	// The compiled form of the reduced system (null until it is needed).
+	Plan m_plan;
+
+
 	///////////////////////////////////////////////////////////////////////////
 	//								CONSTRUCTORS							 //
 	///////////////////////////////////////////////////////////////////////////
-	
+
 	/**
 	 * Standard constructor.
-	 * 
+	 *
 	 * Creates an initially empty system with the given number of equations and
 	 * unknowns.
-	 * 
+	 *
 	 * @param equations The number of equations (must be greater than 0, set
 	 * 					to 1 if not).
 	 * @param unknowns The number of unknowns (must be greater than 0, set to
 	 * 				   1 if not).
 	 */
 	public LinearSystem(int unknowns, int equations) {
-		
+
 		m_unknowns = unknowns;
 		if (m_unknowns < 1) {
 			m_unknowns = 1;
 		}
-		
+
 		m_equations = equations;
 		if (m_equations < 1) {
 			m_equations = 1;
 		}
-		
-		m_mat = new ArrayList<MatRow>();
+
+		m_idx = new int[m_equations][0];
+		m_val = new long[m_equations][0];
+		m_len = new int[m_equations];
+		m_rhs = new long[m_equations];
+		m_big = false;
+		m_added = 0;
+
+		m_pivot = new int[m_equations];
+		m_pivotrow = new int[m_unknowns];
+		for (int r = 0; r < m_equations; r++) {
+			m_pivot[r] = -1;
+		}
+		for (int c = 0; c < m_unknowns; c++) {
+			m_pivotrow[c] = -1;
+		}
 	}
-	
-	
+
+
 	///////////////////////////////////////////////////////////////////////////
 	//								ACCESSORS								 //
 	///////////////////////////////////////////////////////////////////////////
-	
+
 	/**
 	 * Returns the coefficient in front of the 'c'th unknown of the 'r'th
-	 * equation.
+	 * equation (or its solution, if c is the number of unknowns).
 	 */
 	public double get(int r, int c) {
-		return m_mat.get(r).get(c);
+		if (c == m_unknowns) {
+			return m_big ? m_bigrhs[r].doubleValue() : m_rhs[r];
+		}
+		int k = find(r, c);
+		if (k < 0) {
+			return 0;
+		}
+		return m_big ? m_bigval[r][k].doubleValue() : m_val[r][k];
 	}
-	
+
 	/**
 	 * Returns the number of rows (equations) in our matrix (system).
 	 */
 	public int rows() {
 		return m_equations;
 	}
-	
+
 	/**
 	 * Returns the number of columns (unknowns + 1) in our matrix (system).
 	 */
 	public int cols() {
 		return m_unknowns+1;
 	}
-	
+
+	/**
+	 * Returns true if the 'c'th unknown is the pivot of some row, once the
+	 * system has been reduced. The unknowns which are not pivots are the free
+	 * ones, from which all of the others can be solved for.
+	 */
+	public boolean isPivot(int c) {
+		return m_pivotrow[c] != -1;
+	}
+
+	/**
+	 * Returns false if the (reduced) system contains an equation of the form
+	 * 0 = k for some non-zero k, meaning it has no solutions at all.
+	 */
+	public boolean consistent() {
+		for (int r = 0; r < m_equations; r++) {
+			if (m_len[r] == 0 && (m_big ? m_bigrhs[r].signum() != 0 : m_rhs[r] != 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Solves the system of equations for x_unknown. This function should be
-	 * called with all of the required variable values to solve for x_unknown.
-	 * 
+	 * called with all of the required variable values to solve for x_unknown,
+	 * once the system has been reduced.
+	 *
 	 * @param unknown, The unknown we are solving for in the system.
 	 * @param variables, The variables required to solve for this unknown.
 	 * @param values, The values for these variables.
 	 */
 	public double solveFor(int unknown, ArrayList<Integer> variables, ArrayList<Integer> values) {
-		
-		// Generate a list of variable values. This list contains a -1 if the
-		// unknown was not supplied in 'variables.' Otherwise, it contains the
-		// corresponding 0 or 1 from 'values.'
-		ArrayList<Integer> allvars = new ArrayList<Integer>();
-		for(int i = 0; i < m_unknowns; i++) {
-			if (variables.contains(i)) {
-				int index = variables.indexOf(i);
-				allvars.add(values.get(index));
-			}
-			else {
-				allvars.add(-1);
-			}
-		}
-		
-		// What will eventually contain our answer.
-		double answer = 0;
-		
-		// Either the variable is a pivot in its row (and all of the variables
-		// required to solve for it have been supplied), or it is supplied
-		// in the variables array.
-		boolean is_pivot = (allvars.get(unknown) == -1);
-		
-		// If this variable is a pivot, then all of the necessary variables
-		// for determining its solution have been supplied, and we simply
-		// solve the equation for it.
-		if (is_pivot) {
-			
-			// Find the row to use
-			int unknown_row = 0;
-			for (int r = 0; r < m_equations; r++) {
-				if (get(r, unknown) != 0) {
-					unknown_row = r;
-					break;
-				}
-			}
-			
-			// Start with the last value (the constant in the equation), and
-			// subtract the necessary variables multiplied by their proper
-			// coefficients from the 'allvars' array.
-			answer = m_mat.get(unknown_row).get(m_unknowns);
-			boolean first_found = false;
-			for (int c = 0; c < m_unknowns; c++) {
-				if (get(unknown_row,c) != 0) {
-					if (first_found == false) {
-						first_found = true;
-					}
-					else {
-						// This function assumes that the proper setup has been
-						// done to ensure that allvars.get(c) is -1 only if
-						// get(unknown_row, c) is 0, and so these values do not
-						// contribute to the answer.
-						answer -= get(unknown_row,c) * allvars.get(c);
-					}
-				}
-			}
-		}
+
+		int unknown_row = m_pivotrow[unknown];
+
 		// If the unknown is not a pivot variable, then it has been supplied in
-		// the unknown values array, and we can simply look it up in 'allvars'.
-		else {
-			answer = allvars.get(unknown);
+		// the unknown values array, and we can simply look it up.
+		if (unknown_row == -1) {
+			return values.get(variables.indexOf(unknown));
 		}
-		
-		return answer;
+
+		// Otherwise it is (solution - the other terms) / (its coefficient).
+		BigInteger numerator = numerator(unknown_row, allValues(variables, values));
+		int k = find(unknown_row, unknown);
+		if (m_big) {
+			return numerator.doubleValue() / m_bigval[unknown_row][k].doubleValue();
+		}
+		return numerator.doubleValue() / m_val[unknown_row][k];
+	}
+
+	/**
+	 * Solves the system of equations for x_unknown, exactly. Returns its
+	 * value if that is a 0 or a 1, or -1 if it is anything else. This
+	 * function should be called with all of the required variable values to
+	 * solve for x_unknown, once the system has been reduced.
+	 *
+	 * @param unknown, The unknown we are solving for in the system.
+	 * @param variables, The variables required to solve for this unknown.
+	 * @param values, The values for these variables.
+	 */
+	public int valueOf(int unknown, ArrayList<Integer> variables, ArrayList<Integer> values) {
+		return compile().valueOf(unknown, freeValues(variables, values));
 	}
-	
+
 	/**
 	 * Returns true if plugging in the variables with their respective values
-	 * results in all variables in the system being either 0 or 1. X_0 (the
-	 * first row/column) is ignored because it can take on other values.
-	 * 
+	 * results in all variables in the system being either 0 or 1.
+	 *
 	 * @param variables, The variables which we are plugging in values for.
 	 * @param values, Their respective values.
 	 */
 	public boolean canSolve(ArrayList<Integer> variables, ArrayList<Integer> values) {
-		
-		for (int i = 1; i < m_unknowns; i++) {
-			double result = solveFor(i, variables, values);
-			if (result != 0 && result != 1) {
-				return false;
-			}
-		}
-		return true;
+		return compile().evaluate(freeValues(variables, values), new int[m_unknowns]) != -1;
 	}
-	
-	
+
+
 	///////////////////////////////////////////////////////////////////////////
 	//								MUTATORS								 //
 	///////////////////////////////////////////////////////////////////////////
-	
+
 	/**
 	 * Add an equation to the system. The equation must contain the same number
-	 * of unknowns as the system. This function returns false if it does not,
-	 * and true otherwise.
+	 * of unknowns as the system, and the system must not already be full.
+	 * This function returns false if it does not, and true otherwise. The
+	 * coefficients are rounded to whole numbers.
 	 */
 	public boolean add_equation(ArrayList<Double> vals) {
-		
+
 		if (vals.size() != m_unknowns + 1) {
 			return false;
 		}
-		
-		m_mat.add(new MatRow(vals));
+
+		double[] dense = new double[m_unknowns + 1];
+		for (int c = 0; c <= m_unknowns; c++) {
+			dense[c] = vals.get(c);
+		}
+		return add_equation(dense);
+	}
+
+	/**
+	 * Add an equation to the system, given as an array of coefficients
+	 * followed by the solution. Behaves the same as the ArrayList version.
+	 */
+	public boolean add_equation(double[] vals) {
+
+		if (vals.length != m_unknowns + 1) {
+			return false;
+		}
+
+		int nonzero = 0;
+		for (int c = 0; c < m_unknowns; c++) {
+			if (Math.round(vals[c]) != 0) {
+				nonzero++;
+			}
+		}
+		int[] cols = new int[nonzero];
+		long[] coefs = new long[nonzero];
+		int k = 0;
+		for (int c = 0; c < m_unknowns; c++) {
+			if (Math.round(vals[c]) != 0) {
+				cols[k] = c;
+				coefs[k] = Math.round(vals[c]);
+				k++;
+			}
+		}
+		return add_equation(cols, coefs, Math.round(vals[m_unknowns]));
+	}
+
+	/**
+	 * Add an equation to the system, given only by its non-zero coefficients.
+	 * The equation says that the sum of coefs[k] * x_cols[k] is 'solution'.
+	 * The columns must be in increasing order. This function returns false
+	 * if the system is already full, has been reduced, or a column is out of
+	 * range, and true otherwise. (Use foldEquation to add an equation to a
+	 * system which has been reduced.)
+	 */
+	public boolean add_equation(int[] cols, long[] coefs, long solution) {
+
+		if (m_added >= m_equations || m_big || m_reduced || !validRow(cols, coefs)) {
+			return false;
+		}
+
+		m_idx[m_added] = cols.clone();
+		m_val[m_added] = coefs.clone();
+		m_len[m_added] = cols.length;
+		m_rhs[m_added] = solution;
+		m_added++;
 		return true;
 	}
-	
-	/**
-	 * Converts the matrix of the system to reduced row-echelon form (RREF).
-	 * 
-	 * Namely, a matrix is in RREF if:
-	 *     1) All nonzero rows (rows with at least one nonzero element) are
-	 *        above any rows containing only zeros.
-	 *     2) The "leading coefficient" or "pivot" (first nonzero number from
-	 *        the left) of a nonzero row is always strictly to the right of the
-	 *        leading coefficient of the row above it.
-	 *     3) Every leading coefficient has value 1, and is the only nonzero
-	 *        entry in its column.
-	 *        
+
+	/**
+	 * Reduces the system, using Gauss-Jordan elimination, so that every row
+	 * has a pivot which is the only non-zero entry in its column (or the row
+	 * is entirely zeros). This is reduced row-echelon form, except that the
+	 * pivots are not necessarily in order from left to right, and are not
+	 * divided down to 1. Use isPivot() to tell pivots from free unknowns.
+	 *
+	 * Instead of dividing by the pivot, every other row is multiplied by it
+	 * before the pivot row is subtracted, and then divided through by the
+	 * greatest common divisor of its entries to keep the numbers small. This
+	 * keeps everything a whole number.
+	 *
+	 * The pivots are chosen in the manner of Markowitz: at each step, the
+	 * pivot is taken from the shortest remaining row, in the column used by
+	 * the fewest other remaining rows. Eliminating it then creates as few new
+	 * non-zero entries ("fill-in") as possible, so the rows stay sparse.
+	 *
 	 * See:
 	 * http://en.wikipedia.org/wiki/Row_echelon_form#Reduced_row_echelon_form
 	 */
-	public void rref() {
+	public void reduce() {
+
+		m_plan = null;
+		m_reduced = true;
+
+		// Keep a copy of the equations, in case they have to be reduced again
+		// with BigIntegers.
+		int[][] idx = new int[m_equations][];
+		long[][] val = new long[m_equations][];
+		for (int r = 0; r < m_equations; r++) {
+			idx[r] = m_idx[r].clone();
+			val[r] = m_val[r].clone();
+		}
+		int[] len = m_len.clone();
+		long[] rhs = m_rhs.clone();
+
+		try {
+			eliminate();
+		}
+		catch (ArithmeticException e) {
+			// A long overflowed. Go back to the original equations, and do
+			// it all again with BigIntegers.
+			m_idx = idx;
+			m_len = len;
+			m_bigval = new BigInteger[m_equations][];
+			m_bigrhs = new BigInteger[m_equations];
+			for (int r = 0; r < m_equations; r++) {
+				m_bigval[r] = new BigInteger[m_len[r]];
+				for (int k = 0; k < m_len[r]; k++) {
+					m_bigval[r][k] = BigInteger.valueOf(val[r][k]);
+				}
+				m_bigrhs[r] = BigInteger.valueOf(rhs[r]);
+				m_pivot[r] = -1;
+			}
+			for (int c = 0; c < m_unknowns; c++) {
+				m_pivotrow[c] = -1;
+			}
+			m_val = null;
+			m_rhs = null;
+			m_big = true;
 
-		int pivot_row = 0;
-		
-		for (int c = 0; c <= m_unknowns && pivot_row < m_equations; c++) {
-			
-			// Skip columns of all zeros.
-			if (columnAllZeros(c, pivot_row)) {
+			eliminate();
+		}
+	}
+
+	/**
+	 * Adds an equation to a system which has already been reduced, and
+	 * brings the system back to reduced form. The equation is given in the
+	 * same way as for add_equation. If the system has not been reduced yet,
+	 * this is the same as add_equation, except that there is always room.
+	 *
+	 * The pivots already in the system are eliminated from the new row,
+	 * which is then given a pivot of its own (if it has anything left), and
+	 * that column is eliminated from the few rows which use it. No other row
+	 * is touched. Returns false if a column is out of range.
+	 */
+	public boolean foldEquation(int[] cols, long[] coefs, long solution) {
+
+		if (!validRow(cols, coefs)) {
+			return false;
+		}
+		if (m_added >= m_equations) {
+			growRows(m_added + 1);
+		}
+		if (!m_reduced) {
+			return add_equation(cols, coefs, solution);
+		}
+
+		m_plan = null;
+		int r = m_added;
+		m_added++;
+		m_idx[r] = cols.clone();
+		m_len[r] = cols.length;
+		if (m_big) {
+			m_bigval[r] = new BigInteger[cols.length];
+			for (int k = 0; k < cols.length; k++) {
+				m_bigval[r][k] = BigInteger.valueOf(coefs[k]);
+			}
+			m_bigrhs[r] = BigInteger.valueOf(solution);
+		}
+		else {
+			m_val[r] = coefs.clone();
+			m_rhs[r] = solution;
+		}
+
+		m_scratchidx = new int[m_unknowns];
+		try {
+			fold(r);
+		}
+		catch (ArithmeticException e) {
+			// A long overflowed. Every row still holds a valid equation (rows
+			// are only ever replaced whole), so switch over to BigIntegers
+			// and carry on from where we got to.
+			toBig();
+			fold(r);
+		}
+		m_scratchidx = null;
+		m_scratchval = null;
+		m_scratchbig = null;
+		return true;
+	}
+
+	/**
+	 * Fixes the 'c'th unknown to the given value (for example, because its
+	 * square has been revealed or flagged), in a system which has already
+	 * been reduced. This is the same as folding in the equation x_c = value.
+	 * Afterwards, c is a pivot whose row has nothing else in it.
+	 */
+	public boolean fixUnknown(int c, long value) {
+		return foldEquation(new int[] {c}, new long[] {1}, value);
+	}
+
+	/**
+	 * Brings the rows of another reduced system into this one, which must
+	 * also have been reduced. Unknown c of the other system becomes unknown
+	 * colmap[c] of this one. The columns it is mapped to must not be used by
+	 * this system yet, so that the result is still reduced without any more
+	 * work.
+	 *
+	 * An unknown may be mapped to -1 to leave it out, but only if the other
+	 * system has it fixed to a value (its row has nothing else in it). That
+	 * row is then left out as well.
+	 *
+	 * @return false (without changing anything) if either system has not
+	 * 		   been reduced, or the mapping can't be used
+	 */
+	public boolean include(LinearSystem other, int[] colmap) {
+
+		if (!m_reduced || !other.m_reduced || colmap.length != other.m_unknowns) {
+			return false;
+		}
+		boolean[] taken = new boolean[m_unknowns];
+		for (int c = 0; c < colmap.length; c++) {
+			if (colmap[c] >= m_unknowns || (colmap[c] >= 0 && taken[colmap[c]])) {
+				return false;
+			}
+			if (colmap[c] >= 0) {
+				taken[colmap[c]] = true;
+			}
+			else {
+				int r = other.m_pivotrow[c];
+				if (r == -1 || other.m_len[r] != 1) {
+					return false;
+				}
+			}
+		}
+		for (int r = 0; r < m_added; r++) {
+			for (int k = 0; k < m_len[r]; k++) {
+				if (taken[m_idx[r][k]]) {
+					return false;
+				}
+			}
+		}
+		if (other.m_big && !m_big) {
+			toBig();
+		}
+
+		m_plan = null;
+		for (int orow = 0; orow < other.m_added; orow++) {
+			int olen = other.m_len[orow];
+			int opivot = other.m_pivot[orow];
+			if (opivot != -1 && colmap[opivot] < 0) {
 				continue;
 			}
-			
-			// Find pivot, and place in next row.
-			for (int r = pivot_row; r < m_equations; r++) {
-				if (m_mat.get(r).get(c) != 0) {
-					swap_rows(r, pivot_row);
-					break;
+			boolean empty = (olen == 0);
+			if (empty && (other.m_big ? other.m_bigrhs[orow].signum() == 0 : other.m_rhs[orow] == 0)) {
+				continue;
+			}
+
+			// Renumber the columns, and put them back in increasing order.
+			Integer[] order = new Integer[olen];
+			for (int k = 0; k < olen; k++) {
+				order[k] = k;
+			}
+			final int[] oidx = other.m_idx[orow];
+			final int[] map = colmap;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Integer.compare(map[oidx[a]], map[oidx[b]]);
 				}
+			});
+
+			if (m_added >= m_equations) {
+				growRows(m_added + 1);
 			}
-			
-			// Set pivot equal to 1.
-			double pivot_value = m_mat.get(pivot_row).get(c);
-			m_mat.set(pivot_row, m_mat.get(pivot_row).mult(1.0 / pivot_value));
-			
-			// Make all other values in the column 0.
-			for (int r = 0; r < m_equations; r++) {
-				// Skip pivot row.
-				if (r == pivot_row) {
-					continue;
+			int r = m_added;
+			m_added++;
+			m_idx[r] = new int[olen];
+			m_len[r] = olen;
+			if (m_big) {
+				m_bigval[r] = new BigInteger[olen];
+			}
+			else {
+				m_val[r] = new long[olen];
+			}
+			for (int k = 0; k < olen; k++) {
+				int ok = order[k];
+				m_idx[r][k] = colmap[oidx[ok]];
+				if (m_big) {
+					m_bigval[r][k] = other.m_big ? other.m_bigval[orow][ok] : BigInteger.valueOf(other.m_val[orow][ok]);
+				}
+				else {
+					m_val[r][k] = other.m_val[orow][ok];
+				}
+			}
+			if (m_big) {
+				m_bigrhs[r] = other.m_big ? other.m_bigrhs[orow] : BigInteger.valueOf(other.m_rhs[orow]);
+			}
+			else {
+				m_rhs[r] = other.m_rhs[orow];
+			}
+			if (opivot != -1) {
+				m_pivot[r] = colmap[opivot];
+				m_pivotrow[colmap[opivot]] = r;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compiles the reduced system into a Plan for checking guesses of the
+	 * u-variables (the unknowns which are not pivots). The plan is only made
+	 * once, and handed out again on later calls.
+	 */
+	public Plan compile() {
+		if (m_plan != null) {
+			return m_plan;
+		}
+
+		Plan plan = new Plan();
+		plan.m_consistent = consistent();
+		plan.m_slot = new int[m_unknowns];
+
+		// Number the u-variables and the pivots.
+		int numfree = 0;
+		int numpivots = 0;
+		for (int c = 0; c < m_unknowns; c++) {
+			if (m_pivotrow[c] == -1) {
+				plan.m_slot[c] = -(numfree + 1);
+				numfree++;
+			}
+			else {
+				plan.m_slot[c] = numpivots;
+				numpivots++;
+			}
+		}
+		plan.m_uvars = new int[numfree];
+		plan.m_pivots = new int[numpivots];
+		plan.m_start = new int[numpivots + 1];
+		for (int c = 0; c < m_unknowns; c++) {
+			if (plan.m_slot[c] < 0) {
+				plan.m_uvars[-plan.m_slot[c] - 1] = c;
+			}
+			else {
+				int p = plan.m_slot[c];
+				plan.m_pivots[p] = c;
+				plan.m_start[p + 1] = m_len[m_pivotrow[c]] - 1;
+			}
+		}
+		for (int p = 0; p < numpivots; p++) {
+			plan.m_start[p + 1] += plan.m_start[p];
+		}
+
+		// A row can only overflow while being checked if the sum of the
+		// sizes of its numbers is too big for a long.
+		boolean big = m_big;
+		for (int p = 0; p < numpivots && !big; p++) {
+			int r = m_pivotrow[plan.m_pivots[p]];
+			try {
+				long size = Math.abs(m_rhs[r]);
+				for (int k = 0; k < m_len[r]; k++) {
+					size = Math.addExact(size, Math.abs(m_val[r][k]));
+				}
+			}
+			catch (ArithmeticException e) {
+				big = true;
+			}
+		}
+
+		int nnz = plan.m_start[numpivots];
+		plan.m_dep = new int[nnz];
+		if (big) {
+			plan.m_bigcoef = new BigInteger[numpivots];
+			plan.m_bigconst = new BigInteger[numpivots];
+			plan.m_bigdepcoef = new BigInteger[nnz];
+		}
+		else {
+			plan.m_coef = new long[numpivots];
+			plan.m_const = new long[numpivots];
+			plan.m_depcoef = new long[nnz];
+		}
+
+		// Copy each pivot row over.
+		for (int p = 0; p < numpivots; p++) {
+			int c = plan.m_pivots[p];
+			int r = m_pivotrow[c];
+			int d = plan.m_start[p];
+			for (int k = 0; k < m_len[r]; k++) {
+				BigInteger value = m_big ? m_bigval[r][k] : BigInteger.valueOf(m_val[r][k]);
+				if (m_idx[r][k] == c) {
+					if (big) {
+						plan.m_bigcoef[p] = value;
+					}
+					else {
+						plan.m_coef[p] = m_val[r][k];
+					}
+				}
+				else {
+					plan.m_dep[d] = -plan.m_slot[m_idx[r][k]] - 1;
+					if (big) {
+						plan.m_bigdepcoef[d] = value;
+					}
+					else {
+						plan.m_depcoef[d] = m_val[r][k];
+					}
+					d++;
+				}
+			}
+			if (big) {
+				plan.m_bigconst[p] = m_big ? m_bigrhs[r] : BigInteger.valueOf(m_rhs[r]);
+			}
+			else {
+				plan.m_const[p] = m_rhs[r];
+			}
+		}
+
+		// List the terms by u-variable as well, for walking through guesses.
+		if (!big) {
+			plan.m_ustart = new int[numfree + 1];
+			plan.m_upivot = new int[nnz];
+			plan.m_ucoef = new long[nnz];
+			for (int d = 0; d < nnz; d++) {
+				plan.m_ustart[plan.m_dep[d] + 1]++;
+			}
+			for (int i = 0; i < numfree; i++) {
+				plan.m_ustart[i + 1] += plan.m_ustart[i];
+			}
+			int[] next = plan.m_ustart.clone();
+			for (int p = 0; p < numpivots; p++) {
+				for (int d = plan.m_start[p]; d < plan.m_start[p + 1]; d++) {
+					int i = plan.m_dep[d];
+					plan.m_upivot[next[i]] = p;
+					plan.m_ucoef[next[i]] = plan.m_depcoef[d];
+					next[i]++;
 				}
-				
-				// Get value currently in that column.
-				double current_value = m_mat.get(r).get(c);
-				// Set to 0.
-				m_mat.set(r, m_mat.get(r).addmult(current_value * -1.0, m_mat.get(pivot_row)));
 			}
-			
-			pivot_row++;
 		}
+
+		m_plan = plan;
+		return plan;
 	}
-	
+
 	///////////////////////////////////////////////////////////////////////////
 	//							PRIVATE FUNCTIONS							 //
 	///////////////////////////////////////////////////////////////////////////
-	
+
+	/**
+	 * Does the work of foldEquation(), once the new equation has been put in
+	 * row 'r'. This can be run again from the start if it is interrupted,
+	 * and will pick up where it left off.
+	 */
+	private void fold(int r) {
+		if (m_big) {
+			m_scratchbig = new BigInteger[m_unknowns];
+		}
+		else {
+			m_scratchval = new long[m_unknowns];
+		}
+
+		// Take every existing pivot out of the new row. The pivot rows have
+		// no other pivots in them, so this never brings one back.
+		if (m_pivot[r] == -1) {
+			int k = 0;
+			while (k < m_len[r]) {
+				int c = m_idx[r][k];
+				if (m_pivotrow[c] != -1) {
+					eliminateRow(r, m_pivotrow[c], c);
+					k = 0;
+				}
+				else {
+					k++;
+				}
+			}
+			if (m_len[r] == 0) {
+				return;
+			}
+
+			// Pick the new pivot from the column used by the fewest rows, so
+			// that as few rows as possible have to change.
+			int[] uses = new int[m_len[r]];
+			for (int row = 0; row < m_added; row++) {
+				if (row == r) {
+					continue;
+				}
+				for (int k2 = 0; k2 < m_len[r]; k2++) {
+					if (find(row, m_idx[r][k2]) >= 0) {
+						uses[k2]++;
+					}
+				}
+			}
+			int pivot_k = 0;
+			for (int k2 = 1; k2 < m_len[r]; k2++) {
+				if (uses[k2] < uses[pivot_k]) {
+					pivot_k = k2;
+				}
+			}
+			int c = m_idx[r][pivot_k];
+			m_pivot[r] = c;
+			m_pivotrow[c] = r;
+			simplify_row(r, pivot_k);
+		}
+
+		// Make every other value in the new pivot's column 0.
+		int c = m_pivot[r];
+		for (int row = 0; row < m_added; row++) {
+			if (row != r && find(row, c) >= 0) {
+				eliminateRow(row, r, c);
+			}
+		}
+	}
+
+	/**
+	 * Eliminates column 'c' from row 'dst' using row 'src', with longs or
+	 * BigIntegers as appropriate.
+	 */
+	private void eliminateRow(int dst, int src, int c) {
+		int len = m_len[dst];
+		if (m_big) {
+			eliminate_big(dst, src, c);
+		}
+		else {
+			eliminate_long(dst, src, c);
+		}
+
+		// Move the row to the list for its new length.
+		if (m_bylen != null && m_pivot[dst] == -1 && m_len[dst] != len) {
+			unlinkRow(dst, len);
+			linkRow(dst);
+		}
+	}
+
+	/**
+	 * Switches the system over to BigIntegers, keeping the rows as they are.
+	 */
+	private void toBig() {
+		if (m_big) {
+			return;
+		}
+		m_bigval = new BigInteger[m_equations][];
+		m_bigrhs = new BigInteger[m_equations];
+		for (int r = 0; r < m_equations; r++) {
+			m_bigval[r] = new BigInteger[m_len[r]];
+			for (int k = 0; k < m_len[r]; k++) {
+				m_bigval[r][k] = BigInteger.valueOf(m_val[r][k]);
+			}
+			m_bigrhs[r] = BigInteger.valueOf(m_rhs[r]);
+		}
+		m_val = null;
+		m_rhs = null;
+		m_big = true;
+		if (m_scratchidx != null) {
+			m_scratchval = null;
+			m_scratchbig = new BigInteger[m_unknowns];
+		}
+	}
+
 	/**
-	 * Swap two equations (rows) in the system (matrix).
-	 * 
-	 * Under normal conditions, rows 'a' and 'b' are swapped. If either row is
-	 * out of the bounds of the system, or if 'a' and 'b' are the same row,
-	 * this function does nothing.
+	 * Makes room for at least 'rows' equations. The new rows are all zeros.
 	 */
-	private void swap_rows(int a, int b) {
-		if (a == b || a < 0 || b < 0 || a >= m_equations || b >= m_equations) {
+	private void growRows(int rows) {
+		if (rows <= m_equations) {
 			return;
 		}
-		
-		MatRow a_row = m_mat.get(a);
-		MatRow b_row = m_mat.get(b);
-		
-		m_mat.set(a, b_row);
-		m_mat.set(b, a_row);
-		
+		int grown = Math.max(rows, 2 * m_equations);
+		m_idx = Arrays.copyOf(m_idx, grown);
+		m_len = Arrays.copyOf(m_len, grown);
+		m_pivot = Arrays.copyOf(m_pivot, grown);
+		if (m_big) {
+			m_bigval = Arrays.copyOf(m_bigval, grown);
+			m_bigrhs = Arrays.copyOf(m_bigrhs, grown);
+		}
+		else {
+			m_val = Arrays.copyOf(m_val, grown);
+			m_rhs = Arrays.copyOf(m_rhs, grown);
+		}
+		for (int r = m_equations; r < grown; r++) {
+			m_idx[r] = new int[0];
+			m_pivot[r] = -1;
+			if (m_big) {
+				m_bigval[r] = new BigInteger[0];
+				m_bigrhs[r] = BigInteger.ZERO;
+			}
+			else {
+				m_val[r] = new long[0];
+			}
+		}
+		m_equations = grown;
 	}
-	
+
 	/**
-	 * Returns true if column 'c' contains only zeros below row 'r' (including)
-	 * this row. Otherwise, returns false.
+	 * Returns true if the given columns are in range and in increasing
+	 * order, with a coefficient for each.
 	 */
-	private boolean columnAllZeros(int c, int r) {
-		if (c < 0 || r < 0 || c > m_unknowns || r >= m_equations) {
+	private boolean validRow(int[] cols, long[] coefs) {
+		if (cols.length != coefs.length) {
 			return false;
 		}
-		
-		for (int i = r; i < m_equations; i++) {
-			if (m_mat.get(i).get(c) != 0) {
+		for (int k = 0; k < cols.length; k++) {
+			if (cols[k] < 0 || cols[k] >= m_unknowns || (k > 0 && cols[k] <= cols[k - 1])) {
 				return false;
 			}
 		}
-		
 		return true;
 	}
+
+	/**
+	 * Does the work of reduce(), with either longs or BigIntegers. When using
+	 * longs, this throws an ArithmeticException if any of them overflow.
+	 */
+	private void eliminate() {
+
+		// Find out which rows use each column.
+		m_colrows = new int[m_unknowns][4];
+		m_collen = new int[m_unknowns];
+		m_colcount = new int[m_unknowns];
+		for (int r = 0; r < m_equations; r++) {
+			for (int k = 0; k < m_len[r]; k++) {
+				addColumnRow(m_idx[r][k], r);
+				m_colcount[m_idx[r][k]]++;
+			}
+		}
+		m_scratchidx = new int[m_unknowns];
+		if (m_big) {
+			m_scratchbig = new BigInteger[m_unknowns];
+		}
+		else {
+			m_scratchval = new long[m_unknowns];
+		}
+
+		// Sort the rows into lists by their length.
+		m_bylen = new int[m_unknowns + 1];
+		m_nextrow = new int[m_equations];
+		m_prevrow = new int[m_equations];
+		Arrays.fill(m_bylen, -1);
+		m_shortest = m_unknowns + 1;
+		for (int r = 0; r < m_equations; r++) {
+			linkRow(r);
+		}
+
+		while (true) {
+
+			// Choose the next pivot. Among the rows without a pivot, take the
+			// shortest, and within it the column shared with the fewest other
+			// rows.
+			while (m_shortest <= m_unknowns && m_bylen[m_shortest] == -1) {
+				m_shortest++;
+			}
+			if (m_shortest > m_unknowns) {
+				break;
+			}
+			int pivot_row = m_bylen[m_shortest];
+
+			int pivot_k = 0;
+			for (int k = 1; k < m_len[pivot_row]; k++) {
+				if (m_colcount[m_idx[pivot_row][k]] < m_colcount[m_idx[pivot_row][pivot_k]]) {
+					pivot_k = k;
+				}
+			}
+			int c = m_idx[pivot_row][pivot_k];
+
+			// The row is no longer waiting for a pivot.
+			unlinkRow(pivot_row, m_len[pivot_row]);
+			m_pivot[pivot_row] = c;
+			m_pivotrow[c] = pivot_row;
+			for (int k = 0; k < m_len[pivot_row]; k++) {
+				m_colcount[m_idx[pivot_row][k]]--;
+			}
+			simplify_row(pivot_row, pivot_k);
+
+			// Make all other values in the column 0. Only the rows listed for
+			// the column can have anything there.
+			for (int i = 0; i < m_collen[c]; i++) {
+				int r = m_colrows[c][i];
+				if (r != pivot_row && find(r, c) >= 0) {
+					eliminateRow(r, pivot_row, c);
+				}
+			}
+			m_colrows[c][0] = pivot_row;
+			m_collen[c] = 1;
+		}
+
+		m_colrows = null;
+		m_collen = null;
+		m_colcount = null;
+		m_bylen = null;
+		m_nextrow = null;
+		m_prevrow = null;
+		m_scratchidx = null;
+		m_scratchval = null;
+		m_scratchbig = null;
+	}
+
+	/**
+	 * Returns where column 'c' is stored within row 'r', or -1 if the row has
+	 * no coefficient in that column.
+	 */
+	private int find(int r, int c) {
+		int lo = 0;
+		int hi = m_len[r] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (m_idx[r][mid] < c) {
+				lo = mid + 1;
+			}
+			else if (m_idx[r][mid] > c) {
+				hi = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Puts row 'r' at the front of the list for its length, unless it
+	 * already has a pivot or is empty.
+	 */
+	private void linkRow(int r) {
+		int len = m_len[r];
+		if (m_pivot[r] != -1 || len == 0) {
+			return;
+		}
+		m_prevrow[r] = -1;
+		m_nextrow[r] = m_bylen[len];
+		if (m_bylen[len] != -1) {
+			m_prevrow[m_bylen[len]] = r;
+		}
+		m_bylen[len] = r;
+		m_shortest = Math.min(m_shortest, len);
+	}
+
+	/**
+	 * Takes row 'r' out of the list for length 'len', where linkRow put it
+	 * (if it did).
+	 */
+	private void unlinkRow(int r, int len) {
+		if (len == 0) {
+			return;
+		}
+		if (m_prevrow[r] != -1) {
+			m_nextrow[m_prevrow[r]] = m_nextrow[r];
+		}
+		else {
+			m_bylen[len] = m_nextrow[r];
+		}
+		if (m_nextrow[r] != -1) {
+			m_prevrow[m_nextrow[r]] = m_prevrow[r];
+		}
+	}
+
+	/**
+	 * Notes that row 'r' has a coefficient in column 'c'.
+	 */
+	private void addColumnRow(int c, int r) {
+		if (m_collen[c] == m_colrows[c].length) {
+			int[] grown = new int[2 * m_colrows[c].length];
+			System.arraycopy(m_colrows[c], 0, grown, 0, m_collen[c]);
+			m_colrows[c] = grown;
+		}
+		m_colrows[c][m_collen[c]] = r;
+		m_collen[c]++;
+	}
+
+	/**
+	 * Keeps the column lists and counts up to date when column 'col' of row
+	 * 'r' changes. 'had' says whether the row used the column before, and
+	 * 'has' whether it does now.
+	 */
+	private void noteEntry(int r, int col, boolean had, boolean has) {
+		// Nothing is being tracked outside of reduce().
+		if (m_colrows == null) {
+			return;
+		}
+		boolean waiting = (m_pivot[r] == -1);
+		if (has && !had) {
+			addColumnRow(col, r);
+			if (waiting) {
+				m_colcount[col]++;
+			}
+		}
+		else if (had && !has && waiting) {
+			m_colcount[col]--;
+		}
+	}
+
+	/**
+	 * Divides row 'r' through by the greatest common divisor of its entries,
+	 * and flips its sign if need be so that its k'th coefficient is positive.
+	 */
+	private void simplify_row(int r, int k) {
+		if (m_big) {
+			BigInteger gcd = m_bigrhs[r];
+			for (int i = 0; i < m_len[r]; i++) {
+				gcd = gcd.gcd(m_bigval[r][i]);
+			}
+			if (m_bigval[r][k].signum() < 0) {
+				gcd = gcd.negate();
+			}
+			for (int i = 0; i < m_len[r]; i++) {
+				m_bigval[r][i] = m_bigval[r][i].divide(gcd);
+			}
+			m_bigrhs[r] = m_bigrhs[r].divide(gcd);
+		}
+		else {
+			long gcd = Math.abs(m_rhs[r]);
+			for (int i = 0; i < m_len[r]; i++) {
+				gcd = gcd(gcd, Math.abs(m_val[r][i]));
+			}
+			if (m_val[r][k] < 0) {
+				gcd = -gcd;
+			}
+			for (int i = 0; i < m_len[r]; i++) {
+				m_val[r][i] /= gcd;
+			}
+			m_rhs[r] /= gcd;
+		}
+	}
+
+	/**
+	 * Eliminates column 'c' from row 'dst', using row 'src' (whose pivot is
+	 * in column 'c'), with longs:
+	 * <dst row> = (a * <dst row>) - (b * <src row>)
+	 * where a is the pivot and b is dst's coefficient in column 'c'. Throws
+	 * an ArithmeticException if anything overflows.
+	 */
+	private void eliminate_long(int dst, int src, int c) {
+		int[] didx = m_idx[dst];
+		long[] dval = m_val[dst];
+		int[] sidx = m_idx[src];
+		long[] sval = m_val[src];
+		int dlen = m_len[dst];
+		int slen = m_len[src];
+		long a = sval[find(src, c)];
+		long b = dval[find(dst, c)];
+
+		// Merge the two rows into the scratch space.
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < dlen || j < slen) {
+			int col;
+			long value;
+			boolean had = false;
+			if (j >= slen || (i < dlen && didx[i] < sidx[j])) {
+				col = didx[i];
+				value = Math.multiplyExact(a, dval[i]);
+				i++;
+				had = true;
+			}
+			else if (i >= dlen || sidx[j] < didx[i]) {
+				col = sidx[j];
+				value = Math.negateExact(Math.multiplyExact(b, sval[j]));
+				j++;
+			}
+			else {
+				col = didx[i];
+				value = Math.subtractExact(Math.multiplyExact(a, dval[i]), Math.multiplyExact(b, sval[j]));
+				i++;
+				j++;
+				had = true;
+			}
+
+			boolean has = (col != c && value != 0);
+			if (has) {
+				m_scratchidx[n] = col;
+				m_scratchval[n] = value;
+				n++;
+			}
+			noteEntry(dst, col, had, has);
+		}
+
+		// Work out the new solution before touching the row, so that if it
+		// overflows the row is left as it was.
+		long rhs = Math.subtractExact(Math.multiplyExact(a, m_rhs[dst]), Math.multiplyExact(b, m_rhs[src]));
+
+		// Copy the result back, only growing the row if it has to.
+		if (n > didx.length) {
+			m_idx[dst] = new int[Math.max(n, 2 * didx.length)];
+			m_val[dst] = new long[Math.max(n, 2 * didx.length)];
+		}
+		System.arraycopy(m_scratchidx, 0, m_idx[dst], 0, n);
+		System.arraycopy(m_scratchval, 0, m_val[dst], 0, n);
+		m_len[dst] = n;
+		m_rhs[dst] = rhs;
+		if (n > 0) {
+			simplify_row(dst, (m_pivot[dst] == -1) ? 0 : find(dst, m_pivot[dst]));
+		}
+	}
+
+	/**
+	 * Does the same as eliminate_long, but with BigIntegers.
+	 */
+	private void eliminate_big(int dst, int src, int c) {
+		int[] didx = m_idx[dst];
+		BigInteger[] dval = m_bigval[dst];
+		int[] sidx = m_idx[src];
+		BigInteger[] sval = m_bigval[src];
+		int dlen = m_len[dst];
+		int slen = m_len[src];
+		BigInteger a = sval[find(src, c)];
+		BigInteger b = dval[find(dst, c)];
+
+		// Merge the two rows into the scratch space.
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < dlen || j < slen) {
+			int col;
+			BigInteger value;
+			boolean had = false;
+			if (j >= slen || (i < dlen && didx[i] < sidx[j])) {
+				col = didx[i];
+				value = a.multiply(dval[i]);
+				i++;
+				had = true;
+			}
+			else if (i >= dlen || sidx[j] < didx[i]) {
+				col = sidx[j];
+				value = b.multiply(sval[j]).negate();
+				j++;
+			}
+			else {
+				col = didx[i];
+				value = a.multiply(dval[i]).subtract(b.multiply(sval[j]));
+				i++;
+				j++;
+				had = true;
+			}
+
+			boolean has = (col != c && value.signum() != 0);
+			if (has) {
+				m_scratchidx[n] = col;
+				m_scratchbig[n] = value;
+				n++;
+			}
+			noteEntry(dst, col, had, has);
+		}
+
+		// Copy the result back, only growing the row if it has to.
+		if (n > didx.length) {
+			m_idx[dst] = new int[Math.max(n, 2 * didx.length)];
+			m_bigval[dst] = new BigInteger[Math.max(n, 2 * didx.length)];
+		}
+		System.arraycopy(m_scratchidx, 0, m_idx[dst], 0, n);
+		System.arraycopy(m_scratchbig, 0, m_bigval[dst], 0, n);
+		m_len[dst] = n;
+		m_bigrhs[dst] = a.multiply(m_bigrhs[dst]).subtract(b.multiply(m_bigrhs[src]));
+		if (n > 0) {
+			simplify_row(dst, (m_pivot[dst] == -1) ? 0 : find(dst, m_pivot[dst]));
+		}
+	}
+
+	/**
+	 * Returns an array holding the value of every unknown: the corresponding
+	 * 0 or 1 from 'values' if it is one of 'variables', or -1 if not.
+	 */
+	private int[] allValues(ArrayList<Integer> variables, ArrayList<Integer> values) {
+		int[] allvars = new int[m_unknowns];
+		for (int i = 0; i < m_unknowns; i++) {
+			allvars[i] = -1;
+		}
+		for (int i = 0; i < variables.size(); i++) {
+			allvars[variables.get(i)] = values.get(i);
+		}
+		return allvars;
+	}
+
+	/**
+	 * Returns the guess for each u-variable of the compiled plan, given the
+	 * variables which are being plugged in and their values.
+	 */
+	private int[] freeValues(ArrayList<Integer> variables, ArrayList<Integer> values) {
+		Plan plan = compile();
+		int[] uvals = new int[plan.free()];
+		for (int i = 0; i < variables.size(); i++) {
+			int slot = plan.m_slot[variables.get(i)];
+			if (slot < 0) {
+				uvals[-slot - 1] = values.get(i);
+			}
+		}
+		return uvals;
+	}
+
+	/**
+	 * Returns the solution of row 'row', minus all of its terms other than
+	 * the pivot, given the values of the unknowns which are not pivots.
+	 */
+	private BigInteger numerator(int row, int[] allvars) {
+		int pivot = m_pivot[row];
+		if (!m_big) {
+			try {
+				long answer = m_rhs[row];
+				for (int k = 0; k < m_len[row]; k++) {
+					if (m_idx[row][k] != pivot && allvars[m_idx[row][k]] == 1) {
+						answer = Math.subtractExact(answer, m_val[row][k]);
+					}
+				}
+				return BigInteger.valueOf(answer);
+			}
+			catch (ArithmeticException e) {
+				// Fall through and do the sum with BigIntegers.
+			}
+		}
+
+		BigInteger answer = m_big ? m_bigrhs[row] : BigInteger.valueOf(m_rhs[row]);
+		for (int k = 0; k < m_len[row]; k++) {
+			if (m_idx[row][k] != pivot && allvars[m_idx[row][k]] == 1) {
+				answer = answer.subtract(m_big ? m_bigval[row][k] : BigInteger.valueOf(m_val[row][k]));
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Returns the greatest common divisor of two non-negative numbers (or 1
+	 * if they are both 0).
+	 */
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return (a == 0) ? 1 : a;
+	}
 }
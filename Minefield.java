@@ -1,11 +1,18 @@
 package probcalc;
 
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * This class generates the minefield that the player tries to guess throughout
  * the course of the game.
+ *
+ * Everything the game needs to know about the field is worked out once, when
+ * it is generated: the number of mines around every square, and the
+ * openings. An opening is a connected region of squares with no mines around
+ * them, together with the squares bordering it. Clicking any square of the
+ * region reveals the whole opening (unless some of it is flagged). The same pass gives the field's 3BV: the
+ * fewest clicks which reveal every safe square.
  */
 public class Minefield {
 
@@ -21,6 +28,21 @@ public class Minefield {
 	// the square is a mine. False indicates otherwise.
 	private boolean m_grid[][];
 	
+	// The number of mines around square (r,c) is m_counts[r * m_cols + c].
+	private byte[] m_counts;
+	
+	// m_opening[r * m_cols + c] is the opening whose region holds square
+	// (r,c), or -1 if the square has mines around it. The squares of opening
+	// k (both its region and its border, as r * m_cols + c) are
+	// m_openingsquares[m_openingstart[k]] to
+	// m_openingsquares[m_openingstart[k + 1] - 1].
+	private int[] m_opening;
+	private int[] m_openingsquares;
+	private int[] m_openingstart;
+	
+	// The fewest clicks which reveal every safe square.
+	private int m_3bv;
+	
 	///////////////////////////////////////////////////////////////////////////
 	//								CONSTRUCTORS							 //
 	///////////////////////////////////////////////////////////////////////////
@@ -28,7 +50,7 @@ public class Minefield {
 	/**
 	 * Allows for a minefield of the desired dimensions to be specified.  The
 	 * first click is also specified, so that no mines are placed in or around
-	 * it.
+	 * it. The mines are placed at random, differently every time.
 	 * 
 	 * @param rows The number of rows in the field
 	 * @param cols The number of columns in the field
@@ -37,6 +59,24 @@ public class Minefield {
 	 * @param f_col The column of the first click
 	 */
 	public Minefield(int rows, int cols, int mines, int f_row, int f_col) {
+		this(rows, cols, mines, f_row, f_col, new SplittableRandom());
+	}
+	
+	/**
+	 * As above, but with the mines placed according to the given seed. The
+	 * same seed (with the same size, mines and first click) always gives the
+	 * same field, so a game can be played again.
+	 */
+	public Minefield(int rows, int cols, int mines, int f_row, int f_col, long seed) {
+		this(rows, cols, mines, f_row, f_col, new SplittableRandom(seed));
+	}
+	
+	/**
+	 * As above, but with the mines placed using random numbers from the given
+	 * generator. Many fields can be made reproducibly from one seed by
+	 * handing each of them random.split().
+	 */
+	public Minefield(int rows, int cols, int mines, int f_row, int f_col, SplittableRandom random) {
 		// The number of rows in the board must be greater than zero. It is set
 		// to one if not.
 		m_rows = rows;
@@ -51,73 +91,72 @@ public class Minefield {
 			m_cols = 1;
 		}
 		
-		// The number of mines in the field must be non-negative, it is set to
-		// zero if not.
+		// The number of mines must be no greater than the total number of
+		// squares in the field less nine. The nine is due to the fact that the
+		// first click necessitates a maximum of nine squares to be non-mines.
 		int total = m_cols * m_rows;
 		m_mines = mines;
+		if (m_mines > total - 9) {
+			m_mines = total - 9;
+		}
+		// The number of mines in the field must also be non-negative (even on
+		// a field with fewer than nine squares), it is set to zero if not.
 		if (m_mines < 0) {
 			m_mines = 0;
 		}
-		// The number of mines must also be no greater than the total number of
-		// squares in the field less nine. The nine is due to the fact that the
-		// first click necessitates a maximum of nine squares to be non-mines.
-		else if (m_mines > total - 9) {
-			m_mines = total - 9;
-		}
 		
 		// Initialize the grid for storing the mines.
 		m_grid = new boolean[m_rows][m_cols];
 		
-		// Keep track of which squares have been used so that we can distribute
-		// the mines more quickly.
-		ArrayList<Integer> unused_squares = new ArrayList<Integer>();
-		for (int i = 0; i < m_rows * m_cols; i++) {
-			unused_squares.add(i);
+		// Every square which may still be used for a mine is in the first
+		// 'unused' places of this array.
+		int[] squares = new int[total];
+		for (int i = 0; i < total; i++) {
+			squares[i] = i;
 		}
-		int num_unused_squares = m_rows * m_cols;
+		int unused = total;
 		
-		// Remove the first square and all of its neighbors from the list of
-		// squares which may be used for mines. The order is necessary (right-
-		// to-left and bottom-to-top) so that removing one square from the list
-		// does not change the positions of the other squares.
+		// Swap the first square and all of its neighbors to the end of the
+		// array, out of the way. The order is necessary (right-to-left and
+		// bottom-to-top) so that each square is still in its own place when
+		// it is swapped out.
+		for (int dr = 1; dr >= -1; dr--) {
+			for (int dc = 1; dc >= -1; dc--) {
+				int r = f_row + dr;
+				int c = f_col + dc;
+				if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
+					continue;
+				}
+				unused--;
+				swap(squares, r * m_cols + c, unused);
+			}
+		}
 		
-		// Remove bottom-right if it exists.
-		if (removeSquare(f_row + 1, f_col + 1, unused_squares)) { num_unused_squares--; }
-		// Remove bottom if it exists.
-		if (removeSquare(f_row + 1, f_col, unused_squares))     { num_unused_squares--; }
-		// Remove bottom-left if it exists.
-		if (removeSquare(f_row + 1, f_col - 1, unused_squares)) { num_unused_squares--; }
-		// Remove right if it exists.
-		if (removeSquare(f_row, f_col + 1, unused_squares))		{ num_unused_squares--; }
-		// Remove the first click.
-		if (removeSquare(f_row, f_col, unused_squares))			{ num_unused_squares--; }
-		// Remove the left if it exists.
-		if (removeSquare(f_row, f_col - 1, unused_squares))		{ num_unused_squares--; }
-		// Remove the top-right if it exists.
-		if (removeSquare(f_row - 1, f_col + 1, unused_squares)) { num_unused_squares--; }
-		// Remove the top if it exists.
-		if (removeSquare(f_row - 1, f_col, unused_squares))		{ num_unused_squares--; }
-		// Remove the top-left if it exists.
-		if (removeSquare(f_row - 1, f_col - 1, unused_squares)) { num_unused_squares--; }
+		// Randomly generate the mines in the game, by shuffling just enough
+		// of the usable squares to the front of the array (a partial
+		// Fisher-Yates shuffle). Each mine takes constant time, and every
+		// usable square is equally likely to get one.
+		for (int i = 0; i < m_mines; i++) {
+			swap(squares, i, i + random.nextInt(unused - i));
+			m_grid[squares[i] / m_cols][squares[i] % m_cols] = true;
+		}
 		
-		// Randomly generate the mines in the game.
-		Random generator = new Random(System.nanoTime());
-		int current_mines = 0;
-		while (current_mines < m_mines) {
-			
-			// Find a victim row and column.
-			int rand = generator.nextInt(num_unused_squares - 1);
-			int rand_row = unused_squares.get(rand) / m_cols;
-			int rand_col = unused_squares.get(rand) % m_cols;
-			
-			// Set the square to be a mine.
-			m_grid[rand_row][rand_col] = true;
-			current_mines++;
-			
-			// Remove the square from the usable square list.
-			unused_squares.remove(rand);
-			num_unused_squares--;
+		// Count the mines around every square, a mine at a time.
+		m_counts = new byte[total];
+		for (int i = 0; i < m_mines; i++) {
+			int r = squares[i] / m_cols;
+			int c = squares[i] % m_cols;
+			for (int dr = -1; dr <= 1; dr++) {
+				for (int dc = -1; dc <= 1; dc++) {
+					if ((dr != 0 || dc != 0) && r + dr >= 0 && c + dc >= 0 &&
+						r + dr < m_rows && c + dc < m_cols) {
+						m_counts[(r + dr) * m_cols + c + dc]++;
+					}
+				}
+			}
 		}
+		
+		findOpenings();
 	}
 	
 	///////////////////////////////////////////////////////////////////////////
@@ -140,6 +179,11 @@ public class Minefield {
 	 * Returns the number of mines around a given square.
 	 */
 	public int minesSurrounding(int r, int c) {
+		if (r >= 0 && c >= 0 && r < m_rows && c < m_cols) {
+			return m_counts[r * m_cols + c];
+		}
+		
+		// Squares off the edge aren't counted in advance.
 		int count = 0;
 		
 		if (get(r-1,c-1)) {count++;}
@@ -154,21 +198,135 @@ public class Minefield {
 		return count;
 	}
 	
+	/**
+	 * Returns the opening whose region holds square (r,c), or -1 if the
+	 * square is a mine, has mines around it, or is out-of-bounds.
+	 */
+	public int opening(int r, int c) {
+		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
+			return -1;
+		}
+		return m_opening[r * m_cols + c];
+	}
+	
+	/**
+	 * Returns the number of openings in the field.
+	 */
+	public int openings() {
+		return m_openingstart.length - 1;
+	}
+	
+	/**
+	 * Returns every square (as row * cols + column) which clicking in
+	 * opening k reveals: its region, and the squares bordering it.
+	 */
+	public int[] openingSquares(int k) {
+		return Arrays.copyOfRange(m_openingsquares, m_openingstart[k], m_openingstart[k + 1]);
+	}
+	
+	/**
+	 * Returns the field's 3BV: the fewest left clicks which reveal every safe
+	 * square. That is one for each opening, and one for each other safe
+	 * square which doesn't border an opening.
+	 */
+	public int threeBV() {
+		return m_3bv;
+	}
+	
 	///////////////////////////////////////////////////////////////////////////
 	//							PRIVATE FUNCTIONS							 //
 	///////////////////////////////////////////////////////////////////////////
 	
 	/**
-	 * Removes the square at (r, c) from the list of usable squares for mine
-	 * locations. This function returns true if the squre was in bounds, or
-	 * false if the square was not in bounds.
+	 * Labels the openings, and works out the 3BV. Each region is flooded from
+	 * its first square with a queue, so every square is looked at a fixed
+	 * number of times.
 	 */
-	private boolean removeSquare(int r, int c, ArrayList<Integer> l) {
-		if (r < 0 || c < 0 || r >= m_rows || c >= m_cols) {
-			return false;
+	private void findOpenings() {
+		int total = m_rows * m_cols;
+		m_opening = new int[total];
+		Arrays.fill(m_opening, -1);
+		
+		// Squares which border the opening being flooded are marked with its
+		// number plus one, so that each is only listed once per opening. A
+		// square bordering any opening needs no click of its own.
+		int[] border = new int[total];
+		boolean[] bordered = new boolean[total];
+		int[] queue = new int[total];
+		int[] found = new int[16];
+		int numfound = 0;
+		int[] starts = new int[16];
+		int numopenings = 0;
+		
+		for (int start = 0; start < total; start++) {
+			if (m_counts[start] != 0 || m_opening[start] != -1 ||
+				m_grid[start / m_cols][start % m_cols]) {
+				continue;
+			}
+			
+			// Flood the region from here, listing its squares and the
+			// squares around it.
+			if (numopenings + 1 >= starts.length) {
+				starts = Arrays.copyOf(starts, 2 * starts.length);
+			}
+			starts[numopenings] = numfound;
+			m_opening[start] = numopenings;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = start;
+			while (head < tail) {
+				int i = queue[head++];
+				if (numfound == found.length) {
+					found = Arrays.copyOf(found, 2 * found.length);
+				}
+				found[numfound++] = i;
+				int r = i / m_cols;
+				int c = i % m_cols;
+				for (int dr = -1; dr <= 1; dr++) {
+					for (int dc = -1; dc <= 1; dc++) {
+						if (r + dr < 0 || c + dc < 0 || r + dr >= m_rows || c + dc >= m_cols) {
+							continue;
+						}
+						int n = (r + dr) * m_cols + c + dc;
+						if (m_counts[n] == 0) {
+							if (m_opening[n] == -1) {
+								m_opening[n] = numopenings;
+								queue[tail++] = n;
+							}
+						}
+						else if (border[n] != numopenings + 1) {
+							border[n] = numopenings + 1;
+							bordered[n] = true;
+							if (numfound == found.length) {
+								found = Arrays.copyOf(found, 2 * found.length);
+							}
+							found[numfound++] = n;
+						}
+					}
+				}
+			}
+			numopenings++;
 		}
+		starts[numopenings] = numfound;
+		m_openingsquares = Arrays.copyOf(found, numfound);
+		m_openingstart = Arrays.copyOf(starts, numopenings + 1);
 		
-		l.remove(r * m_cols + c);
-		return true;
+		// One click per opening, and one for each safe square left over.
+		m_3bv = numopenings;
+		for (int i = 0; i < total; i++) {
+			if (m_counts[i] != 0 && !bordered[i] && !m_grid[i / m_cols][i % m_cols]) {
+				m_3bv++;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Swaps the entries at places i and j of the array.
+	 */
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
 	}
 }
@@ -0,0 +1,37 @@
+package probcalc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A way of working out the mine layouts of a component of the board. The
+ * Calculator splits the board into components, hands each one to an engine
+ * (picked by an EngineSelector), and combines what the engines found into
+ * the probability of every square.
+ */
+public interface ProbabilityEngine {
+
+	/**
+	 * Returns a short name for the engine, as used to pick it in the
+	 * configuration and to report which engines were used.
+	 */
+	public String name();
+
+	/**
+	 * Solves the component, filling in its counts of mine layouts. Returns
+	 * false, without solving anything, if the engine can't handle this
+	 * component, so that another can be tried.
+	 *
+	 * @param comp The component to solve
+	 * @param maxmines The most mines the component may use (the number of
+	 * 				   mines left in the game)
+	 * @param pool The pool to share the work out in, or null to do it all on
+	 * 			   the current thread
+	 * @param cancel If this is (or becomes) true, the work is given up on,
+	 * 				 and a CancellationException thrown. May be null.
+	 * @param known What is known about the board the component comes from
+	 * @param cache Solved components from earlier calculations. May be null.
+	 */
+	public boolean solve(Component comp, int maxmines, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, ComponentCache cache);
+}
@@ -0,0 +1,90 @@
+package probcalc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the probabilities worked out for the last few boards, so that
+ * coming back to a board which has been seen before (by undoing a flag, say)
+ * doesn't mean working them all out again.
+ *
+ * Boards are looked up by their hash, and the board a Calculator was built
+ * from is checked against the one asked for, so two boards which happen to
+ * share a hash can never be mixed up. When the cache is full, the board
+ * which was used least recently is forgotten.
+ */
+public class ResultCache {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The most boards the cache will hold.
+	private int m_capacity;
+
+	// The cached calculators, by the hash of the board they were built from,
+	// in order from least to most recently used.
+	private LinkedHashMap<Long, Calculator> m_map;
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Makes an empty cache which holds up to
+	 * 'capacity' boards (at least one).
+	 */
+	public ResultCache(int capacity) {
+		m_capacity = Math.max(capacity, 1);
+		m_map = new LinkedHashMap<Long, Calculator>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Long, Calculator> eldest) {
+				return size() > m_capacity;
+			}
+		};
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the calculator for a board which looks exactly like the given
+	 * one, or null if there isn't one in the cache.
+	 */
+	public synchronized Calculator get(Board b) {
+		Calculator calc = m_map.get(b.hash());
+		if (calc == null || !calc.board().matches(b)) {
+			return null;
+		}
+		return calc;
+	}
+
+	/**
+	 * Returns the number of boards in the cache.
+	 */
+	public synchronized int size() {
+		return m_map.size();
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MUTATORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Adds a calculator to the cache, under the board it was built from. That
+	 * board must not be changed afterwards.
+	 */
+	public synchronized void put(Calculator calc) {
+		m_map.put(calc.board().hash(), calc);
+	}
+
+	/**
+	 * Forgets every board in the cache.
+	 */
+	public synchronized void clear() {
+		m_map.clear();
+	}
+}
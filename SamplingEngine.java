@@ -0,0 +1,62 @@
+package probcalc;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Estimates the layouts of a component by sampling (see Component.sample),
+ * for components too big for anything exact. The random numbers are seeded
+ * from the component, so the same component always gets the same estimate.
+ */
+public class SamplingEngine implements ProbabilityEngine {
+
+	///////////////////////////////////////////////////////////////////////////
+	//								MEMBERS									 //
+	///////////////////////////////////////////////////////////////////////////
+
+	// The number of samples taken of each component.
+	private long m_samples;
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								CONSTRUCTORS							 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Standard constructor. Takes the given number of samples of each
+	 * component (at least one). The margins of error shrink with the square
+	 * root of this.
+	 */
+	public SamplingEngine(long samples) {
+		m_samples = Math.max(samples, 1);
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////
+	//								ACCESSORS								 //
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns "sampling".
+	 */
+	public String name() {
+		return "sampling";
+	}
+
+	/**
+	 * Returns the number of samples taken of each component.
+	 */
+	public long samples() {
+		return m_samples;
+	}
+
+	/**
+	 * Estimates the component by sampling. This always works.
+	 */
+	public boolean solve(Component comp, int maxmines, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, ComponentCache cache) {
+		comp.sample(maxmines, pool, cancel, m_samples, new SplittableRandom(comp.hash()));
+		return true;
+	}
+}
@@ -0,0 +1,28 @@
+package probcalc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Enumerates every layout of a component with a depth-first search (see
+ * Component.solve). Works for any component, and is the quickest for small
+ * ones.
+ */
+public class SearchEngine implements ProbabilityEngine {
+
+	/**
+	 * Returns "search".
+	 */
+	public String name() {
+		return "search";
+	}
+
+	/**
+	 * Solves the component by searching. This always works.
+	 */
+	public boolean solve(Component comp, int maxmines, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, ComponentCache cache) {
+		comp.solve(maxmines, pool, cancel);
+		return true;
+	}
+}
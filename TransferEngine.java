@@ -0,0 +1,27 @@
+package probcalc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Counts the layouts of a long, thin component exactly with a sweep along it
+ * (see Component.solveByTransfer). It turns down components which are too
+ * wide.
+ */
+public class TransferEngine implements ProbabilityEngine {
+
+	/**
+	 * Returns "transfer".
+	 */
+	public String name() {
+		return "transfer";
+	}
+
+	/**
+	 * Solves the component by sweeping along it, unless it is too wide.
+	 */
+	public boolean solve(Component comp, int maxmines, ForkJoinPool pool, AtomicBoolean cancel,
+			Frontier known, ComponentCache cache) {
+		return comp.solveByTransfer(maxmines, cancel);
+	}
+}